@@ -0,0 +1,129 @@
+package com.echo.holographlibrary;
+
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prepares new data for a graph on an {@link Executor} and swaps it in on the UI thread.
+ * Starting another swap, or setting data directly, drops the result of a swap that has not
+ * been swapped in yet.
+ */
+final class AsyncDataSwap {
+
+    /**
+     * The work of one swap. The fields it prepares are written on the executor and read on
+     * the UI thread, which the handoff through the message queue makes safe.
+     */
+    interface Preparation {
+        /**
+         * Called on the executor.
+         */
+        void prepare();
+
+        /**
+         * Called on the UI thread to swap the prepared data in. Also asks for the redraw.
+         */
+        void apply();
+    }
+
+    private final View mView;
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    // Told once the next frame has been drawn. UI thread only.
+    private final ArrayList<OnDataShownListener> mShownListeners =
+            new ArrayList<OnDataShownListener>();
+
+    AsyncDataSwap(View view) {
+        mView = view;
+    }
+
+    void start(Executor executor, final Preparation preparation,
+               final OnDataShownListener listener) {
+        final int generation = mGeneration.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration.get()) {
+                    return;
+                }
+                preparation.prepare();
+                mView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration.get()) {
+                            return;
+                        }
+                        preparation.apply();
+                        if (listener != null) {
+                            mShownListeners.add(listener);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drops any swap that has been started but not swapped in.
+     */
+    void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Called by the graph when it draws, to tell the listeners of the data it drew once the
+     * frame is done.
+     */
+    void onDraw() {
+        notifyShown(takeShownListeners());
+    }
+
+    /**
+     * For a graph that does not draw its data in onDraw(), e.g. because it is drawn on another
+     * thread: takes the listeners of the data swapped in so far, to be passed to
+     * {@link #notifyShown} once a frame with that data is on screen.
+     *
+     * @return the listeners, or null if there are none
+     */
+    OnDataShownListener[] takeShownListeners() {
+        if (mShownListeners.isEmpty()) {
+            return null;
+        }
+        OnDataShownListener[] listeners =
+                mShownListeners.toArray(new OnDataShownListener[mShownListeners.size()]);
+        mShownListeners.clear();
+        return listeners;
+    }
+
+    /**
+     * Gives back listeners taken with {@link #takeShownListeners()} whose data will not be
+     * shown the way it was meant to, e.g. because the thread drawing it stopped. They are told
+     * once the graph draws again.
+     */
+    void restoreShownListeners(OnDataShownListener[] listeners) {
+        if (listeners != null) {
+            mShownListeners.addAll(0, Arrays.asList(listeners));
+        }
+    }
+
+    /**
+     * Tells listeners taken with {@link #takeShownListeners()} that their data is shown, once
+     * the frame being drawn is done.
+     */
+    void notifyShown(final OnDataShownListener[] listeners) {
+        if (listeners == null) {
+            return;
+        }
+        mView.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnDataShownListener listener : listeners) {
+                    listener.onDataShown();
+                }
+            }
+        });
+    }
+}
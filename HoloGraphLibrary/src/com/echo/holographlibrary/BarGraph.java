@@ -49,6 +49,7 @@ import android.view.animation.LinearInterpolator;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 public class BarGraph extends View implements HoloGraphAnimate {
 
@@ -82,6 +83,19 @@ public class BarGraph extends View implements HoloGraphAnimate {
     private long mLastTimeValueStringsUpdated;
     private long mValueStringUpdateInterval = 200;//ms; how often to update the value strings when animating
     private int mValueStringPrecision = 0;//how many decimals to put in the value string when animating; 0 for integers
+    private final InvalidationBatcher mInvalidator = new InvalidationBatcher(this);
+    private final AsyncDataSwap mDataSwap = new AsyncDataSwap(this);
+    // Worked out by setBarsAsync() for the first frame of the bars it set, or null
+    private PreparedLayout mPreparedLayout;
+
+    private static final class PreparedLayout {
+        ArrayList<Bar> mBars;
+        int mCount;
+        float mMaxValue;
+        // Width of a bar the label text size was measured for
+        float mBarWidth = Float.NaN;
+        float mLabelTextSize;
+    }
 
     public BarGraph(Context context) {
         this(context, null);
@@ -120,8 +134,59 @@ public class BarGraph extends View implements HoloGraphAnimate {
     }
 
     public void setBars(ArrayList<Bar> points) {
+        mDataSwap.cancel();
         mBars = points;
-        postInvalidate();
+        mPreparedLayout = null;
+        mInvalidator.invalidate();
+    }
+
+    /**
+     * Like {@link #setBars(ArrayList)}, but works out the largest value and the size of the
+     * labels on the given executor first, and only then shows the bars. The bars must not be
+     * changed until the listener, which may be null, is told they were drawn. Setting bars
+     * again before then drops these. The worked out values are only used for the first frame,
+     * so bars changed in place later are drawn with their new values.
+     */
+    public void setBarsAsync(final ArrayList<Bar> bars, Executor executor,
+                             OnDataShownListener listener) {
+        final int width = getWidth();
+        final float padding = 7 * getResources().getDisplayMetrics().density;
+        final float scaledDensity = getResources().getDisplayMetrics().scaledDensity;
+        final PreparedLayout layout = new PreparedLayout();
+        mDataSwap.start(executor, new AsyncDataSwap.Preparation() {
+            @Override
+            public void prepare() {
+                layout.mBars = bars;
+                layout.mCount = bars.size();
+                layout.mMaxValue = getMaxValue(bars);
+                int count = bars.size();
+                if (count > 0) {
+                    // The width onDraw() gives bars that are not being inserted or deleted
+                    layout.mBarWidth = (width - (padding * 2) * count) / count;
+                    layout.mLabelTextSize = measureLabelTextSize(new Paint(), bars,
+                            layout.mBarWidth, padding, scaledDensity);
+                }
+            }
+
+            @Override
+            public void apply() {
+                mBars = bars;
+                mPreparedLayout = layout;
+                mInvalidator.invalidate();
+            }
+        }, listener);
+    }
+
+    /**
+     * Holds back redraws until the matching {@link #endBatch()}, so many changes to the graph
+     * cost a single redraw. Batches can be nested.
+     */
+    public void beginBatch() {
+        mInvalidator.beginBatch();
+    }
+
+    public void endBatch() {
+        mInvalidator.endBatch();
     }
 
     public ArrayList<Bar> getBars() {
@@ -134,6 +199,12 @@ public class BarGraph extends View implements HoloGraphAnimate {
 
     public void onDraw(Canvas canvas) {
         final Resources resources = getContext().getResources();
+        mDataSwap.onDraw();
+        PreparedLayout prepared = mPreparedLayout;
+        mPreparedLayout = null;
+        if (prepared != null && (prepared.mBars != mBars || prepared.mCount != mBars.size())) {
+            prepared = null;
+        }
 
         canvas.drawColor(Color.TRANSPARENT);
         NinePatchDrawable popup = (NinePatchDrawable) resources.getDrawable(R.drawable.popup_black);
@@ -213,38 +284,22 @@ public class BarGraph extends View implements HoloGraphAnimate {
         if (isAnimating()){
             maxValue = mMaxValue;
         }
+        else if (prepared != null) {
+            maxValue = prepared.mMaxValue;
+        }
         else {
-            for (final Bar bar : mBars) {
-                if (bar.getValue() > maxValue) {
-                    maxValue = bar.getValue();
-                }
-            }
-            if (maxValue == 0) {
-                maxValue = 1;
-            }
+            maxValue = getMaxValue(mBars);
         }
 
-        count = 0;
         // Calculate the maximum text size for all the axis labels without regard to animation state so text doesn't jitter.
         // TODO there's probably a better way to do this.
-        mPaint.setTextSize(AXIS_LABEL_FONT_SIZE
-                * resources.getDisplayMetrics().scaledDensity);
-        for (final Bar bar : mBars) {
-            int left = (int) ((padding * 2) * count + padding + barWidth * count);
-            int right = (int) ((padding * 2) * count + padding + barWidth * (count + 1));
-            int width = (int)(defaultBarWidth + (padding *2));
-            float textWidth = mPaint.measureText(bar.getName());
-            // Decrease text size to fit and not overlap with other labels.
-            while (right -left + (padding * LABEL_PADDING_MULTIPLIER) < textWidth) {
-                mPaint.setTextSize(mPaint.getTextSize() - 1);
-                float newTextWidth = mPaint.measureText(bar.getName());
-                if (textWidth == newTextWidth) break;
-                textWidth =newTextWidth;
-            }
-            count++;
+        float labelTextSize;
+        if (prepared != null && prepared.mBarWidth == barWidth) {
+            labelTextSize = prepared.mLabelTextSize;
+        } else {
+            labelTextSize = measureLabelTextSize(mPaint, mBars, barWidth, padding,
+                    resources.getDisplayMetrics().scaledDensity);
         }
-        // Save it to use later
-        float labelTextSize = mPaint.getTextSize();
 
         count = 0;
         int oldright = (int) (padding *-1);
@@ -380,6 +435,47 @@ public class BarGraph extends View implements HoloGraphAnimate {
         }
     }
 
+    /**
+     * @return the largest value of the bars, or 1 if there is none above 0
+     */
+    private static float getMaxValue(ArrayList<Bar> bars) {
+        float maxValue = 0;
+        for (final Bar bar : bars) {
+            if (bar.getValue() > maxValue) {
+                maxValue = bar.getValue();
+            }
+        }
+        if (maxValue == 0) {
+            maxValue = 1;
+        }
+        return maxValue;
+    }
+
+    /**
+     * Shrinks the axis label text until the labels fit their bars.
+     *
+     * @return the text size of the labels
+     */
+    private static float measureLabelTextSize(Paint paint, ArrayList<Bar> bars, float barWidth,
+                                              float padding, float scaledDensity) {
+        paint.setTextSize(AXIS_LABEL_FONT_SIZE * scaledDensity);
+        int count = 0;
+        for (final Bar bar : bars) {
+            int left = (int) ((padding * 2) * count + padding + barWidth * count);
+            int right = (int) ((padding * 2) * count + padding + barWidth * (count + 1));
+            float textWidth = paint.measureText(bar.getName());
+            // Decrease text size to fit and not overlap with other labels.
+            while (right -left + (padding * LABEL_PADDING_MULTIPLIER) < textWidth) {
+                paint.setTextSize(paint.getTextSize() - 1);
+                float newTextWidth = paint.measureText(bar.getName());
+                if (textWidth == newTextWidth) break;
+                textWidth =newTextWidth;
+            }
+            count++;
+        }
+        return paint.getTextSize();
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event) {
 
@@ -397,7 +493,7 @@ public class BarGraph extends View implements HoloGraphAnimate {
                 case MotionEvent.ACTION_DOWN:
                     if (r.contains(point.x, point.y)) {
                         mSelectedIndex = count;
-                        postInvalidate();
+                        mInvalidator.invalidate();
                     }
                     break;
                 case MotionEvent.ACTION_UP:
@@ -414,7 +510,7 @@ public class BarGraph extends View implements HoloGraphAnimate {
         if (MotionEvent.ACTION_UP == event.getAction()
                 || MotionEvent.ACTION_CANCEL == event.getAction()) {
             mSelectedIndex = -1;
-            postInvalidate();
+            mInvalidator.invalidate();
         }
         return true;
     }
@@ -497,6 +593,7 @@ public class BarGraph extends View implements HoloGraphAnimate {
         if (mValueAnimator != null)
             mValueAnimator.cancel();
 
+        mPreparedLayout = null;
         mOldMaxValue = 0;
         mGoalMaxValue = 0;
         for (Bar b : mBars) {
@@ -532,7 +629,7 @@ public class BarGraph extends View implements HoloGraphAnimate {
                         b.makeValueString(mValueStringPrecision);
                     mLastTimeValueStringsUpdated = now;
                 }
-                postInvalidate();
+                mInvalidator.invalidate();
             }});
         va.start();
 
@@ -0,0 +1,151 @@
+package com.echo.holographlibrary;
+
+/**
+ * Reduces a {@link Line} to the subset of its points worth drawing at a given width.
+ * The result is written as indices into the line, so colors and selection keep working.
+ */
+final class Decimator {
+
+    private Decimator() {
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets downsampling of the points in [from, to).
+     *
+     * @param threshold the number of points to keep, at least 3
+     * @param out       receives the indices of the kept points, must hold threshold entries
+     * @return the number of indices written to out
+     */
+    static int lttb(Line line, int from, int to, int threshold, int[] out) {
+        int size = to - from;
+        if (threshold >= size || threshold < 3) {
+            for (int i = 0; i < size; i++) {
+                out[i] = from + i;
+            }
+            return size;
+        }
+
+        // The first and last point are always kept, the rest is split into threshold - 2 buckets
+        double bucketSize = (double) (size - 2) / (threshold - 2);
+        int count = 0;
+        int a = from;
+        out[count++] = a;
+
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            // Average of the next bucket, used as the third corner of the triangle
+            int avgStart = from + (int) ((bucket + 1) * bucketSize) + 1;
+            int avgEnd = Math.min(from + (int) ((bucket + 2) * bucketSize) + 1, to);
+            float avgX = 0;
+            float avgY = 0;
+            for (int i = avgStart; i < avgEnd; i++) {
+                avgX += line.getX(i);
+                avgY += line.getY(i);
+            }
+            int avgLength = avgEnd - avgStart;
+            avgX /= avgLength;
+            avgY /= avgLength;
+
+            int rangeStart = from + (int) (bucket * bucketSize) + 1;
+            int rangeEnd = from + (int) ((bucket + 1) * bucketSize) + 1;
+            float ax = line.getX(a);
+            float ay = line.getY(a);
+            float maxArea = -1;
+            int next = rangeStart;
+            for (int i = rangeStart; i < rangeEnd; i++) {
+                // Twice the area of the triangle, the factor does not matter for comparisons
+                float area = Math.abs((ax - avgX) * (line.getY(i) - ay)
+                        - (ax - line.getX(i)) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = i;
+                }
+            }
+            out[count++] = next;
+            a = next;
+        }
+
+        out[count++] = to - 1;
+        return count;
+    }
+
+    /**
+     * M4 aggregation of the points in [from, to): for every pixel column the first, last,
+     * lowest and highest point are kept, which draws exactly like the full line.
+     * Points outside [minX, maxX] are counted towards the first or last column.
+     *
+     * @param out    receives the indices of the kept points, must hold 4 * columns entries
+     * @param offset where to start writing in out
+     * @return offset plus the number of indices written
+     */
+    static int m4(Line line, int from, int to, float minX, float maxX, int columns,
+                  int[] out, int offset) {
+        int count = offset;
+        if (from >= to) {
+            return count;
+        }
+        int column = column(line.getX(from), minX, maxX, columns);
+        int first = from;
+        int min = from;
+        int max = from;
+        for (int i = from + 1; i < to; i++) {
+            int c = column(line.getX(i), minX, maxX, columns);
+            if (c != column) {
+                count = emit(out, count, first, min, max, i - 1);
+                column = c;
+                first = i;
+                min = i;
+                max = i;
+            } else {
+                float y = line.getY(i);
+                if (y < line.getY(min)) {
+                    min = i;
+                }
+                if (y > line.getY(max)) {
+                    max = i;
+                }
+            }
+        }
+        return emit(out, count, first, min, max, to - 1);
+    }
+
+    /**
+     * @return the position in indices where the points of the last column written by
+     * {@link #m4} start. The index stored there is the first point of that column.
+     */
+    static int lastColumnStart(Line line, int[] indices, int count, float minX, float maxX,
+                               int columns) {
+        int column = column(line.getX(indices[count - 1]), minX, maxX, columns);
+        int start = count - 1;
+        while (start > 0 && column(line.getX(indices[start - 1]), minX, maxX, columns) == column) {
+            start--;
+        }
+        return start;
+    }
+
+    static int column(float x, float minX, float maxX, int columns) {
+        if (maxX <= minX) {
+            return 0;
+        }
+        int column = (int) ((x - minX) / (maxX - minX) * columns);
+        return column < 0 ? 0 : column >= columns ? columns - 1 : column;
+    }
+
+    /**
+     * Writes the distinct indices among first, min, max and last in ascending order.
+     */
+    static int emit(int[] out, int count, int first, int min, int max, int last) {
+        int low = Math.min(min, max);
+        int high = Math.max(min, max);
+        out[count++] = first;
+        if (low > first) {
+            out[count++] = low;
+        }
+        if (high > low && high > first) {
+            out[count++] = high;
+        }
+        if (last > high) {
+            out[count++] = last;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,54 @@
+package com.echo.holographlibrary;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.view.View;
+
+/**
+ * Coalesces the redraw requests of a graph. Requests are tied to the next display frame where
+ * the platform supports it, and are held back entirely while a batch of changes is open.
+ */
+final class InvalidationBatcher {
+
+    private final View mView;
+    private int mBatchDepth;
+    private boolean mPending;
+
+    InvalidationBatcher(View view) {
+        mView = view;
+    }
+
+    synchronized void beginBatch() {
+        mBatchDepth++;
+    }
+
+    synchronized void endBatch() {
+        if (mBatchDepth == 0) {
+            throw new IllegalStateException("endBatch() called without beginBatch()");
+        }
+        mBatchDepth--;
+        if (mBatchDepth == 0 && mPending) {
+            mPending = false;
+            post();
+        }
+    }
+
+    synchronized void invalidate() {
+        if (mBatchDepth > 0) {
+            mPending = true;
+        } else {
+            post();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void post() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // Scheduled on the Choreographer, so any number of calls before the next vsync
+            // produce a single draw
+            mView.postInvalidateOnAnimation();
+        } else {
+            mView.postInvalidate();
+        }
+    }
+}
@@ -23,10 +23,85 @@
 
 package com.echo.holographlibrary;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+/**
+ * A series of points sorted by x.
+ * <p/>
+ * Points are stored in primitive arrays rather than as one object per point. Per-point colors
+ * are only allocated once a point with a non-default color is added. {@link LinePoint}s handed
+ * out by {@link #getPoint(int)} and {@link #getPoints()} are views onto this storage. They keep
+ * referring to the same point when points are added or removed around it, and once their point
+ * is removed they keep its last values, like a point that was never added.
+ * <p/>
+ * For streaming data a line can be limited to a number of points with {@link #setCapacity(int)}
+ * or to a range of x with {@link #setTimeWindow(float)}. The storage is then used as a circular
+ * buffer: appending a point drops the oldest ones without moving the others.
+ * <p/>
+ * Points that arrive slightly out of order can be held back and sorted before they are added,
+ * see {@link #setReorderCapacity(int)} and {@link #setReorderTimeWindow(float)}.
+ * <p/>
+ * A line can also show points it does not hold itself, see {@link #setDataSource}.
+ * <p/>
+ * A line is not thread-safe, except for {@link #postPoint(float, float)} and the other post
+ * methods, which let other threads hand points to the thread that draws the line.
+ */
 public class Line {
-    private ArrayList<LinePoint> mPoints = new ArrayList<LinePoint>();
+    private static final int MIN_CAPACITY = 16;
+    private static final float[] EMPTY = new float[0];
+    // How many points of a data source are read at once to find the bounds of y
+    private static final int BOUNDS_CHUNK = 1024;
+    // How many points are copied out of a buffer at once
+    private static final int BUFFER_CHUNK = 512;
+
+    private float[] mXs = EMPTY;
+    private float[] mYs = EMPTY;
+    private int[] mColors;
+    private int[] mSelectedColors;
+    private int mSize;
+    // Where the points are read from instead of the arrays, or null
+    private LineDataSource mSource;
+    // Whether there is a source, for the threads that post points
+    private volatile boolean mHasSource;
+    // Position of the first point in the arrays. Points wrap around the end of the arrays
+    // when appending to a full line with a capacity or time window.
+    private int mHead;
+    private int mCapacity;
+    private float mTimeWindow;
+    // Points held back until they are older than the reorder window, or null if there is none
+    private LineReorderBuffer mReorderBuffer;
+    private int mReorderCapacity;
+    private float mReorderTimeWindow;
+    // Bounds of y, kept up to date as points are added. Removing a point that holds one of the
+    // extremes only flags them, and they are recomputed the next time they are asked for.
+    private float mMinY = Float.POSITIVE_INFINITY;
+    private float mMaxY = Float.NEGATIVE_INFINITY;
+    private boolean mYBoundsValid = true;
+    // Set up when the bounds are first recomputed, and kept while points are only appended and
+    // dropped from the start, so a sliding window does not recompute them from every point
+    private final LineYWindow mYWindow = new LineYWindow();
+    // Incremented on every change to the points, so caches can tell when they are stale
+    private int mModCount;
+    // Incremented on every change other than appending points after the last one
+    private int mEditCount;
+    // Counts the edits that only removed points from the start
+    private int mFrontEditCount;
+    private int mDecimation = LineGraph.DECIMATION_DEFAULT;
+    // Levels of detail, or null if they are not kept
+    private LinePyramid mPyramid;
+    private final LineRenderCache mRenderCache = new LineRenderCache();
+    private final LinePointQueue mPostedPoints = new LinePointQueue();
+    // Identifies each stored point, so views can find theirs again after points before it were
+    // added or removed. Only kept once a view of a stored point has been handed out, or null.
+    private int[] mIds;
+    private int mNextId;
+    // Changes when the line switches between its own points and a data source, which detaches
+    // every view handed out before
+    private int mViewGeneration;
     private int mColor;
     private boolean mShowPoints = true;
     // 6 has been the default prior to the addition of custom stroke widths
@@ -34,6 +109,12 @@ public class Line {
     // Since this is a new addition, it has to default to false to be backwards compatible
     private boolean mUseDips = false;
 
+    public Line() {
+    }
+
+    public Line(LineDataSource source) {
+        setDataSource(source);
+    }
 
     public boolean isUsingDips() {
         return mUseDips;
@@ -62,47 +143,696 @@ public class Line {
         mColor = color;
     }
 
+    /**
+     * @return a new list holding a view of every point of this line. Changing a point in the
+     * list changes the line, but adding to or removing from the list does not.
+     */
     public ArrayList<LinePoint> getPoints() {
-        return mPoints;
+        ArrayList<LinePoint> points = new ArrayList<LinePoint>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            points.add(new LinePoint(this, i));
+        }
+        return points;
     }
 
-    public void setPoints(ArrayList<LinePoint> points) {
-        mPoints = points;
+    /**
+     * Replaces the points of this line with copies of the given ones, sorted by x. Points with
+     * the same x keep their order.
+     */
+    public void setPoints(List<LinePoint> points) {
+        // The values are read before the line is cleared, as the list may be a view of it
+        int count = points.size();
+        float[] xs = new float[count];
+        float[] ys = new float[count];
+        int[] colors = new int[count];
+        int[] selectedColors = new int[count];
+        int i = 0;
+        for (LinePoint point : points) {
+            xs[i] = point.getX();
+            ys[i] = point.getY();
+            colors[i] = point.getColor();
+            selectedColors[i] = point.getRawSelectedColor();
+            i++;
+        }
+        if (!isSorted(xs, count)) {
+            int[] order = sortedOrder(xs, count);
+            xs = permute(xs, order);
+            ys = permute(ys, order);
+            colors = permute(colors, order);
+            selectedColors = permute(selectedColors, order);
+        }
+
+        mSource = null;
+        mHasSource = false;
+        if (mReorderBuffer != null) {
+            mReorderBuffer.clear();
+        }
+        mHead = 0;
+        mSize = 0;
+        mModCount++;
+        mEditCount++;
+        invalidatePyramid();
+        resetYBounds();
+        mYWindow.invalidate();
+        mColors = null;
+        mSelectedColors = null;
+        // The old points are gone, so their views are detached
+        mIds = null;
+        mViewGeneration++;
+        ensureCapacity(count);
+        for (i = 0; i < count; i++) {
+            insert(mSize, xs[i], ys[i], colors[i], selectedColors[i]);
+        }
+        applyLimits();
     }
 
+    /**
+     * Adds a point, keeping the line sorted by x. The values of the point are copied, so it
+     * has to be set up before it is added; later changes to it are not reflected in the line.
+     * Use {@link #getPoint(int)} to change a point that was added.
+     */
     public void addPoint(LinePoint point) {
-        LinePoint p;
-        for (int i = 0; i < mPoints.size(); i++) {
-            p = mPoints.get(i);
-            if (point.getX() < p.getX()) {
-                mPoints.add(i, point);
-                return;
+        addPoint(point.getX(), point.getY(), point.getColor(), point.getRawSelectedColor());
+    }
+
+    public void addPoint(float x, float y) {
+        addPoint(x, y, LinePoint.DEFAULT_COLOR, LinePoint.NO_COLOR);
+    }
+
+    private void addPoint(float x, float y, int color, int selectedColor) {
+        checkOwnPoints();
+        if (mReorderBuffer != null) {
+            mReorderBuffer.add(x, y, color, selectedColor);
+            releaseExpiredPoints();
+            return;
+        }
+        place(x, y, color, selectedColor);
+        applyLimits();
+    }
+
+    /**
+     * Adds a point, without applying the limits.
+     */
+    private void place(float x, float y, int color, int selectedColor) {
+        // Data usually arrives in x order, so appending is the common case
+        if (mSize == 0 || x >= getMaxX()) {
+            append(x, y, color, selectedColor);
+        } else {
+            linearize();
+            insert(upperBound(x), x, y, color, selectedColor);
+        }
+    }
+
+    /**
+     * Adds several points at once. The batch is sorted once and merged into the line, which is
+     * much cheaper than adding the points one by one.
+     */
+    public void addPoints(LinePoint[] points) {
+        int count = points.length;
+        float[] xs = new float[count];
+        float[] ys = new float[count];
+        int[] colors = null;
+        int[] selectedColors = null;
+        for (int i = 0; i < count; i++) {
+            LinePoint point = points[i];
+            xs[i] = point.getX();
+            ys[i] = point.getY();
+            int color = point.getColor();
+            if (colors == null && color != LinePoint.DEFAULT_COLOR) {
+                colors = newColorArray(count, LinePoint.DEFAULT_COLOR);
             }
+            if (colors != null) {
+                colors[i] = color;
+            }
+            int selectedColor = point.getRawSelectedColor();
+            if (selectedColors == null && selectedColor != LinePoint.NO_COLOR) {
+                selectedColors = newColorArray(count, LinePoint.NO_COLOR);
+            }
+            if (selectedColors != null) {
+                selectedColors[i] = selectedColor;
+            }
+        }
+        addPoints(xs, ys, colors, selectedColors, count);
+    }
+
+    /**
+     * Adds the points (xs[i], ys[i]) using the default point colors.
+     */
+    public void addPoints(float[] xs, float[] ys) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("xs and ys must have the same length");
+        }
+        addPoints(xs, ys, null, null, xs.length);
+    }
+
+    /**
+     * Adds a point from any thread. It is added to the line, like
+     * {@link #addPoint(float, float)} does, when a graph next draws the line. Posting never
+     * waits for the graph, only for other threads posting to the same line.
+     */
+    public void postPoint(float x, float y) {
+        checkPostable();
+        mPostedPoints.add(x, y);
+    }
+
+    /**
+     * Adds the points (xs[i], ys[i]) from any thread, see {@link #postPoint(float, float)}.
+     */
+    public void postPoints(float[] xs, float[] ys) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("xs and ys must have the same length");
+        }
+        checkPostable();
+        mPostedPoints.add(xs, ys, xs.length);
+    }
+
+    /**
+     * Adds the remaining x/y pairs of the buffer from any thread, and moves the buffer past
+     * them, see {@link #postPoint(float, float)}.
+     */
+    public void postPoints(FloatBuffer interleavedXY) {
+        if (interleavedXY.remaining() % 2 != 0) {
+            throw new IllegalArgumentException("interleavedXY must hold x/y pairs");
+        }
+        checkPostable();
+        mPostedPoints.add(interleavedXY);
+    }
+
+    /**
+     * Adds the remaining x/y pairs of floats in the buffer from any thread, in the byte order
+     * of the buffer, see {@link #postPoint(float, float)}.
+     */
+    public void postPoints(ByteBuffer interleavedXY) {
+        if (interleavedXY.remaining() % 8 != 0) {
+            throw new IllegalArgumentException("interleavedXY must hold x/y pairs of floats");
+        }
+        FloatBuffer floats = interleavedXY.asFloatBuffer();
+        postPoints(floats);
+        interleavedXY.position(interleavedXY.position() + 4 * floats.position());
+    }
+
+    /**
+     * Adds the points posted from other threads. Called by graphs before they draw the line.
+     * Points posted before the line got a data source are dropped.
+     *
+     * @return true if any points were added
+     */
+    boolean addPostedPoints() {
+        if (mPostedPoints.isEmpty()) {
+            return false;
+        }
+        if (mSource != null) {
+            mPostedPoints.clear();
+            return false;
         }
-        mPoints.add(point);
+        return mPostedPoints.drainTo(this);
+    }
+
+    /**
+     * Adds the points held by the remaining floats of the buffer as x/y pairs, and moves the
+     * buffer past them. Points that continue the line are copied straight into it; once one
+     * does not, the rest are merged in like {@link #addPoints(float[], float[])} does.
+     */
+    public void addPoints(FloatBuffer interleavedXY) {
+        checkOwnPoints();
+        if (interleavedXY.remaining() % 2 != 0) {
+            throw new IllegalArgumentException("interleavedXY must hold x/y pairs");
+        }
+        if (mReorderBuffer != null) {
+            while (interleavedXY.hasRemaining()) {
+                addPoint(interleavedXY.get(), interleavedXY.get(),
+                        LinePoint.DEFAULT_COLOR, LinePoint.NO_COLOR);
+            }
+            return;
+        }
+        float[] chunk = new float[Math.min(interleavedXY.remaining(), 2 * BUFFER_CHUNK)];
+        while (interleavedXY.hasRemaining()) {
+            int length = Math.min(chunk.length, interleavedXY.remaining());
+            interleavedXY.get(chunk, 0, length);
+            for (int i = 0; i < length; i += 2) {
+                if (mSize > 0 && chunk[i] < getMaxX()) {
+                    mergeRest(chunk, i, length, interleavedXY);
+                    return;
+                }
+                append(chunk[i], chunk[i + 1], LinePoint.DEFAULT_COLOR, LinePoint.NO_COLOR);
+            }
+        }
+        applyLimits();
+    }
+
+    /**
+     * Adds the points held by the remaining bytes of the buffer as pairs of 32-bit float x
+     * and y, in the byte order of the buffer, and moves the buffer past them. See
+     * {@link #addPoints(FloatBuffer)}.
+     */
+    public void addPoints(ByteBuffer interleavedXY) {
+        if (interleavedXY.remaining() % 8 != 0) {
+            throw new IllegalArgumentException("interleavedXY must hold x/y pairs of floats");
+        }
+        FloatBuffer floats = interleavedXY.asFloatBuffer();
+        addPoints(floats);
+        interleavedXY.position(interleavedXY.position() + 4 * floats.position());
+    }
+
+    /**
+     * Merges the pairs left in chunk from the given offset, and those left in the buffer.
+     */
+    private void mergeRest(float[] chunk, int offset, int length, FloatBuffer interleavedXY) {
+        int count = (length - offset) / 2 + interleavedXY.remaining() / 2;
+        float[] xs = new float[count];
+        float[] ys = new float[count];
+        int k = 0;
+        for (int i = offset; i < length; i += 2) {
+            xs[k] = chunk[i];
+            ys[k++] = chunk[i + 1];
+        }
+        while (interleavedXY.hasRemaining()) {
+            xs[k] = interleavedXY.get();
+            ys[k++] = interleavedXY.get();
+        }
+        addPoints(xs, ys, null, null, count);
+    }
+
+    void addPoints(float[] xs, float[] ys, int count) {
+        addPoints(xs, ys, null, null, count);
+    }
+
+    private void addPoints(float[] xs, float[] ys, int[] colors, int[] selectedColors, int count) {
+        checkOwnPoints();
+        if (count == 0) {
+            return;
+        }
+        if (mReorderBuffer != null) {
+            for (int i = 0; i < count; i++) {
+                addPoint(xs[i], ys[i],
+                        colors == null ? LinePoint.DEFAULT_COLOR : colors[i],
+                        selectedColors == null ? LinePoint.NO_COLOR : selectedColors[i]);
+            }
+            return;
+        }
+        if (!isSorted(xs, count)) {
+            int[] order = sortedOrder(xs, count);
+            xs = permute(xs, order);
+            ys = permute(ys, order);
+            colors = colors == null ? null : permute(colors, order);
+            selectedColors = selectedColors == null ? null : permute(selectedColors, order);
+        }
+
+        if (mSize == 0 || xs[0] >= getMaxX()) {
+            for (int i = 0; i < count; i++) {
+                append(xs[i], ys[i],
+                        colors == null ? LinePoint.DEFAULT_COLOR : colors[i],
+                        selectedColors == null ? LinePoint.NO_COLOR : selectedColors[i]);
+            }
+            applyLimits();
+            return;
+        }
+
+        mEditCount++;
+        invalidatePyramid();
+        mYWindow.invalidate();
+        linearize();
+        ensureCapacity(mSize + count);
+        if (mColors == null && colors != null) {
+            mColors = newColorArray(mXs.length, LinePoint.DEFAULT_COLOR);
+        }
+        if (mSelectedColors == null && selectedColors != null) {
+            mSelectedColors = newColorArray(mXs.length, LinePoint.NO_COLOR);
+        }
+        // Ids are handed out in the order of the batch, as if the points were added one by one
+        int nextId = mNextId + count;
+        mNextId = nextId;
+
+        // Merge from the back so every point is moved at most once. Points already in the line
+        // stay in front of new points with the same x, like addPoint does. Once the batch is
+        // exhausted the rest of the line is already in place.
+        int i = mSize - 1;
+        int j = count - 1;
+        for (int k = mSize + count - 1; j >= 0; k--) {
+            if (i >= 0 && mXs[i] > xs[j]) {
+                mXs[k] = mXs[i];
+                mYs[k] = mYs[i];
+                if (mColors != null) {
+                    mColors[k] = mColors[i];
+                }
+                if (mSelectedColors != null) {
+                    mSelectedColors[k] = mSelectedColors[i];
+                }
+                if (mIds != null) {
+                    mIds[k] = mIds[i];
+                }
+                i--;
+            } else {
+                mXs[k] = xs[j];
+                mYs[k] = ys[j];
+                if (mColors != null) {
+                    mColors[k] = colors == null ? LinePoint.DEFAULT_COLOR : colors[j];
+                }
+                if (mSelectedColors != null) {
+                    mSelectedColors[k] = selectedColors == null
+                            ? LinePoint.NO_COLOR : selectedColors[j];
+                }
+                if (mIds != null) {
+                    mIds[k] = --nextId;
+                }
+                j--;
+            }
+        }
+        mSize += count;
+        mModCount++;
+        for (j = 0; j < count; j++) {
+            includeY(ys[j]);
+        }
+        applyLimits();
     }
 
     public void removePoint(LinePoint point) {
-        mPoints.remove(point);
+        if (point == null) {
+            return;
+        }
+        int index = indexOf(point);
+        if (index >= 0) {
+            removePoint(index);
+        }
+    }
+
+    public void removePoint(int index) {
+        checkOwnPoints();
+        checkIndex(index);
+        removeRange(index, index + 1);
+    }
+
+    /**
+     * Removes the points whose x is in [startX, finishX]. The points are sorted by x, so the
+     * range is found by binary search and removed at once, see {@link #removeRange}.
+     */
+    public void removePointsBetween(float startX, float finishX) {
+        checkOwnPoints();
+        removeRange(lowerBound(startX), upperBound(finishX));
     }
 
     public LinePoint getPoint(int index) {
-        return mPoints.get(index);
+        checkIndex(index);
+        return new LinePoint(this, index);
     }
 
     public LinePoint getPoint(float x, float y) {
-        LinePoint p;
-        for (int i = 0; i < mPoints.size(); i++) {
-            p = mPoints.get(i);
-            if (p.getX() == x && p.getY() == y) {
-                return p;
+        int index = indexOf(x, y);
+        return index < 0 ? null : new LinePoint(this, index);
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public float getX(int index) {
+        checkIndex(index);
+        return x(index);
+    }
+
+    public float getY(int index) {
+        checkIndex(index);
+        return y(index);
+    }
+
+    public int getPointColor(int index) {
+        checkIndex(index);
+        return mColors == null ? LinePoint.DEFAULT_COLOR : mColors[position(index)];
+    }
+
+    public void setPointColor(int index, int color) {
+        checkOwnPoints();
+        checkIndex(index);
+        if (storePointColor(index, color)) {
+            mModCount++;
+            mEditCount++;
+        }
+    }
+
+    public int getPointSelectedColor(int index) {
+        int selectedColor = getRawPointSelectedColor(index);
+        if (LinePoint.NO_COLOR == selectedColor) {
+            selectedColor = LinePoint.deriveSelectedColor(getPointColor(index));
+        }
+        return selectedColor;
+    }
+
+    public void setPointSelectedColor(int index, int selectedColor) {
+        checkOwnPoints();
+        checkIndex(index);
+        if (mSelectedColors == null) {
+            if (selectedColor == LinePoint.NO_COLOR) {
+                return;
             }
+            mSelectedColors = newColorArray(mXs.length, LinePoint.NO_COLOR);
         }
-        return null;
+        mSelectedColors[position(index)] = selectedColor;
     }
 
-    public int getSize() {
-        return mPoints.size();
+    /**
+     * @return the smallest x of this line, or 0 if it has no points
+     */
+    public float getMinX() {
+        return mSize == 0 ? 0 : x(0);
+    }
+
+    /**
+     * @return the largest x of this line, or 0 if it has no points
+     */
+    public float getMaxX() {
+        return mSize == 0 ? 0 : x(mSize - 1);
+    }
+
+    /**
+     * @return the smallest y of this line, or 0 if it has no points
+     */
+    public float getMinY() {
+        updateYBounds();
+        return mSize == 0 ? 0 : mMinY;
+    }
+
+    /**
+     * @return the largest y of this line, or 0 if it has no points
+     */
+    public float getMaxY() {
+        updateYBounds();
+        return mSize == 0 ? 0 : mMaxY;
+    }
+
+    public int getDecimation() {
+        return mDecimation;
+    }
+
+    /**
+     * Overrides the decimation of the graph for this line, see
+     * {@link LineGraph#setDecimation(int)}. {@link LineGraph#DECIMATION_DEFAULT} uses the
+     * setting of the graph.
+     */
+    public void setDecimation(int decimation) {
+        mDecimation = decimation;
+    }
+
+    public boolean isUsingLevelOfDetail() {
+        return mPyramid != null;
+    }
+
+    /**
+     * Keeps levels of pre-aggregated points, each holding the lowest and highest point of
+     * buckets twice as large as the level below. Lines drawn with
+     * {@link LineGraph#DECIMATION_M4} then only look at about as many buckets as there are
+     * pixels, however far they are zoomed out, for about two ints of memory per point.
+     * Appending points and dropping them from the start keep the levels up to date, other
+     * changes have them rebuilt when the line is next drawn.
+     */
+    public void setUsingLevelOfDetail(boolean useLevelOfDetail) {
+        if (useLevelOfDetail != (mPyramid != null)) {
+            mPyramid = useLevelOfDetail ? new LinePyramid(this) : null;
+            mModCount++;
+        }
+    }
+
+    public LineDataSource getDataSource() {
+        return mSource;
+    }
+
+    /**
+     * Shows the points of the given source instead of points held by the line, which are
+     * dropped. The source is read as the line is drawn, so it costs no memory of its own;
+     * only the lowest and highest y are kept. Such a line cannot be changed through its own
+     * methods, and ignores its capacity and time window. Call {@link #notifyDataSetChanged()}
+     * or {@link #notifyPointsAppended()} after the points of the source change. null gives
+     * the line back storage of its own, without any points.
+     */
+    public void setDataSource(LineDataSource source) {
+        mSource = source;
+        mHasSource = source != null;
+        if (mReorderBuffer != null) {
+            mReorderBuffer.clear();
+        }
+        mXs = EMPTY;
+        mYs = EMPTY;
+        mColors = null;
+        mSelectedColors = null;
+        mIds = null;
+        mViewGeneration++;
+        mHead = 0;
+        mSize = 0;
+        resetYBounds();
+        mYWindow.invalidate();
+        mModCount++;
+        mEditCount++;
+        invalidatePyramid();
+        if (source != null) {
+            mSize = source.size();
+            mYBoundsValid = false;
+        }
+    }
+
+    /**
+     * Picks up any change to the points of the data source.
+     */
+    public void notifyDataSetChanged() {
+        checkDataSource();
+        mSize = mSource.size();
+        mModCount++;
+        mEditCount++;
+        invalidatePyramid();
+        mYBoundsValid = false;
+        mYWindow.invalidate();
+    }
+
+    /**
+     * Picks up points added to the end of the data source, leaving the points it had before
+     * alone. This is cheaper than {@link #notifyDataSetChanged()}, and lets the graph only
+     * draw what is new.
+     */
+    public void notifyPointsAppended() {
+        checkDataSource();
+        int size = mSource.size();
+        if (size <= mSize) {
+            return;
+        }
+        mModCount++;
+        while (mSize < size) {
+            float y = mSource.getY(mSize);
+            includeY(y);
+            mYWindow.add(y);
+            mSize++;
+            if (mPyramid != null) {
+                mPyramid.append(mSize - 1);
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Limits the line to the given number of points. Once it is full, adding a point drops the
+     * point with the smallest x. 0 removes the limit.
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be less than zero");
+        }
+        mCapacity = capacity;
+        applyLimits();
+    }
+
+    public float getTimeWindow() {
+        return mTimeWindow;
+    }
+
+    /**
+     * Only keeps points whose x is within the given distance of the largest x. Points that
+     * fall out of the window are dropped as new points are added. 0 removes the limit.
+     */
+    public void setTimeWindow(float timeWindow) {
+        if (timeWindow < 0) {
+            throw new IllegalArgumentException("timeWindow must not be less than zero");
+        }
+        mTimeWindow = timeWindow;
+        applyLimits();
+    }
+
+    public int getReorderCapacity() {
+        return mReorderCapacity;
+    }
+
+    /**
+     * Holds back up to the given number of added points, sorted by x, and only adds the one
+     * with the smallest x once there are more. Points that arrive out of order by less than
+     * that many points are then still appended, which is much cheaper than inserting them.
+     * Held back points are not drawn until they are added, see {@link #flushReorderBuffer()}.
+     * 0 turns this off, see also {@link #setReorderTimeWindow(float)}.
+     */
+    public void setReorderCapacity(int reorderCapacity) {
+        if (reorderCapacity < 0) {
+            throw new IllegalArgumentException("reorderCapacity must not be less than zero");
+        }
+        mReorderCapacity = reorderCapacity;
+        updateReorderBuffer();
+    }
+
+    public float getReorderTimeWindow() {
+        return mReorderTimeWindow;
+    }
+
+    /**
+     * Holds back added points, sorted by x, until their x is more than the given distance
+     * below the largest x added so far. Like {@link #setReorderCapacity(int)}, but for points
+     * that arrive late by at most a given amount of x. If both are set, points are added as
+     * soon as either lets them go. 0 turns this off.
+     */
+    public void setReorderTimeWindow(float reorderTimeWindow) {
+        if (reorderTimeWindow < 0) {
+            throw new IllegalArgumentException("reorderTimeWindow must not be less than zero");
+        }
+        mReorderTimeWindow = reorderTimeWindow;
+        updateReorderBuffer();
+    }
+
+    /**
+     * Adds all points held back by the reorder window, for example at the end of a stream.
+     */
+    public void flushReorderBuffer() {
+        if (mReorderBuffer != null) {
+            releasePoints(mReorderBuffer.getSize());
+        }
+    }
+
+    private void updateReorderBuffer() {
+        if (mReorderCapacity == 0 && mReorderTimeWindow == 0) {
+            flushReorderBuffer();
+            mReorderBuffer = null;
+        } else if (mReorderBuffer == null) {
+            mReorderBuffer = new LineReorderBuffer(mReorderCapacity, mReorderTimeWindow);
+        } else {
+            mReorderBuffer.setCapacity(mReorderCapacity);
+            mReorderBuffer.setTimeWindow(mReorderTimeWindow);
+            releaseExpiredPoints();
+        }
+    }
+
+    private void releaseExpiredPoints() {
+        releasePoints(mReorderBuffer.getExpiredCount(
+                mSize == 0 ? Float.NEGATIVE_INFINITY : getMaxX()));
+    }
+
+    /**
+     * Adds the first count points held back by the reorder window.
+     */
+    private void releasePoints(int count) {
+        if (count == 0) {
+            return;
+        }
+        LineReorderBuffer buffer = mReorderBuffer;
+        for (int i = 0; i < count; i++) {
+            place(buffer.getX(i), buffer.getY(i), buffer.getColor(i), buffer.getSelectedColor(i));
+        }
+        buffer.removeFirst(count);
+        applyLimits();
     }
 
     public boolean isShowingPoints() {
@@ -113,4 +843,637 @@ public class Line {
         mShowPoints = showPoints;
     }
 
+    int getModCount() {
+        return mModCount;
+    }
+
+    int getEditCount() {
+        return mEditCount;
+    }
+
+    int getFrontEditCount() {
+        return mFrontEditCount;
+    }
+
+    LineRenderCache getRenderCache() {
+        return mRenderCache;
+    }
+
+    /**
+     * @return the levels of detail, or null if they are not kept
+     */
+    LinePyramid getPyramid() {
+        return mPyramid;
+    }
+
+    /**
+     * Does the work the line would otherwise do when it is first drawn, finding the bounds of
+     * y and building the levels of detail. Lets graphs do it on another thread, while no one
+     * else uses the line.
+     */
+    void prepare() {
+        updateYBounds();
+        if (mPyramid != null) {
+            mPyramid.update();
+        }
+    }
+
+    /**
+     * @return true if any point may have a color other than the default one
+     */
+    boolean hasPointColors() {
+        return mColors != null;
+    }
+
+    int getRawPointSelectedColor(int index) {
+        checkIndex(index);
+        return mSelectedColors == null ? LinePoint.NO_COLOR : mSelectedColors[position(index)];
+    }
+
+    void setX(int index, float x) {
+        checkOwnPoints();
+        checkIndex(index);
+        mXs[position(index)] = x;
+        mModCount++;
+        mEditCount++;
+        invalidatePyramid();
+    }
+
+    void setY(int index, float y) {
+        checkOwnPoints();
+        checkIndex(index);
+        int position = position(index);
+        float oldY = mYs[position];
+        mYs[position] = y;
+        mModCount++;
+        mEditCount++;
+        invalidatePyramid();
+        mYWindow.invalidate();
+        excludeY(oldY);
+        includeY(y);
+    }
+
+    private void includeY(float y) {
+        if (mYBoundsValid) {
+            mMinY = y < mMinY ? y : mMinY;
+            mMaxY = y > mMaxY ? y : mMaxY;
+        }
+    }
+
+    private void excludeY(float y) {
+        if (mSize == 0) {
+            resetYBounds();
+        } else if (y <= mMinY || y >= mMaxY) {
+            mYBoundsValid = false;
+        }
+    }
+
+    private void resetYBounds() {
+        mMinY = Float.POSITIVE_INFINITY;
+        mMaxY = Float.NEGATIVE_INFINITY;
+        mYBoundsValid = true;
+    }
+
+    private void updateYBounds() {
+        if (mYBoundsValid) {
+            return;
+        }
+        if (mYWindow.isValid()) {
+            mMinY = mYWindow.getMin();
+            mMaxY = mYWindow.getMax();
+            mYBoundsValid = true;
+            return;
+        }
+        resetYBounds();
+        mYWindow.reset();
+        if (mSource == null) {
+            for (int i = 0; i < mSize; i++) {
+                float y = mYs[position(i)];
+                includeY(y);
+                mYWindow.add(y);
+            }
+            return;
+        }
+        float[] xs = new float[Math.min(mSize, BOUNDS_CHUNK)];
+        float[] ys = new float[xs.length];
+        for (int from = 0; from < mSize; from += BOUNDS_CHUNK) {
+            int to = Math.min(from + BOUNDS_CHUNK, mSize);
+            read(from, to, xs, ys);
+            for (int i = 0; i < to - from; i++) {
+                includeY(ys[i]);
+                mYWindow.add(ys[i]);
+            }
+        }
+    }
+
+    private int indexOf(LinePoint point) {
+        if (point.isView()) {
+            return point.isViewOf(this) ? point.getIndex() : -1;
+        }
+        return indexOf(point.getX(), point.getY());
+    }
+
+    int getViewGeneration() {
+        return mViewGeneration;
+    }
+
+    /**
+     * @return what identifies the point at the index for a view of it
+     */
+    int getViewId(int index) {
+        checkIndex(index);
+        if (mSource != null) {
+            // The points of a source are not moved by the line
+            return index;
+        }
+        if (mIds == null) {
+            mIds = new int[mXs.length];
+            for (int i = 0; i < mSize; i++) {
+                mIds[position(i)] = mNextId++;
+            }
+        }
+        return mIds[position(index)];
+    }
+
+    /**
+     * Finds the point a view refers to.
+     *
+     * @param hint where the point was last, which is checked first
+     * @param x    the x the point had last, to narrow down the search
+     * @return the index of the point, or -1 if it was removed
+     */
+    int findView(int generation, int id, int hint, float x) {
+        if (generation != mViewGeneration) {
+            return -1;
+        }
+        if (mSource != null) {
+            return id < mSize ? id : -1;
+        }
+        if (mIds == null) {
+            return -1;
+        }
+        if (hint >= 0 && hint < mSize && mIds[position(hint)] == id) {
+            return hint;
+        }
+        for (int i = lowerBound(x), end = upperBound(x); i < end; i++) {
+            if (mIds[position(i)] == id) {
+                return i;
+            }
+        }
+        // Its x may have been changed by index
+        for (int i = 0; i < mSize; i++) {
+            if (mIds[position(i)] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(float x, float y) {
+        for (int i = 0; i < mSize; i++) {
+            if (x(i) == x && y(i) == y) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the first point whose x is not less than the given x
+     */
+    int lowerBound(float x) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (x(mid) < x) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of the first point whose x is greater than the given x
+     */
+    int upperBound(float x) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (x(mid) <= x) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copies the points in [from, to) to the start of xs and ys.
+     */
+    void read(int from, int to, float[] xs, float[] ys) {
+        int count = to - from;
+        if (mSource != null) {
+            if (!mSource.read(xs, ys, from, to)) {
+                for (int i = 0; i < count; i++) {
+                    xs[i] = mSource.getX(from + i);
+                    ys[i] = mSource.getY(from + i);
+                }
+            }
+            return;
+        }
+        int start = position(from);
+        int first = Math.min(count, mXs.length - start);
+        System.arraycopy(mXs, start, xs, 0, first);
+        System.arraycopy(mXs, 0, xs, first, count - first);
+        System.arraycopy(mYs, start, ys, 0, first);
+        System.arraycopy(mYs, 0, ys, first, count - first);
+    }
+
+    private float x(int index) {
+        return mSource == null ? mXs[position(index)] : mSource.getX(index);
+    }
+
+    private float y(int index) {
+        return mSource == null ? mYs[position(index)] : mSource.getY(index);
+    }
+
+    /**
+     * @return the position in the arrays of the point at the given index
+     */
+    private int position(int index) {
+        int position = mHead + index;
+        return position < mXs.length ? position : position - mXs.length;
+    }
+
+    private void append(float x, float y, int color, int selectedColor) {
+        if (mCapacity > 0 && mSize == mCapacity) {
+            removeFirst(1);
+        }
+        if (mSize == mXs.length) {
+            ensureCapacity(mSize + 1);
+        }
+        int position = position(mSize);
+        mXs[position] = x;
+        mYs[position] = y;
+        if (mIds != null) {
+            mIds[position] = mNextId++;
+        }
+        mSize++;
+        mModCount++;
+        includeY(y);
+        mYWindow.add(y);
+        if (mPyramid != null) {
+            mPyramid.append(mSize - 1);
+        }
+        if (mColors != null || color != LinePoint.DEFAULT_COLOR) {
+            storePointColor(mSize - 1, color);
+        }
+        if (mSelectedColors != null || selectedColor != LinePoint.NO_COLOR) {
+            setPointSelectedColor(mSize - 1, selectedColor);
+        }
+    }
+
+    /**
+     * Removes the points in [from, to). Whichever side of the range holds fewer points is
+     * moved to close the gap, so removing from the start or end of the line moves nothing.
+     */
+    private void removeRange(int from, int to) {
+        int count = to - from;
+        if (count <= 0) {
+            return;
+        }
+        if (from == 0) {
+            removeFirst(count);
+            return;
+        }
+        excludeYs(from, to);
+        mYWindow.invalidate();
+        if (from < mSize - to) {
+            movePoints(0, count, from);
+            mHead = position(count);
+        } else {
+            movePoints(to, from, mSize - to);
+        }
+        mSize -= count;
+        mModCount++;
+        mEditCount++;
+        invalidatePyramid();
+    }
+
+    /**
+     * Copies count points from one index to another, which may overlap.
+     */
+    private void movePoints(int fromIndex, int toIndex, int count) {
+        if (mHead + mSize <= mXs.length) {
+            // The points do not wrap around the end of the arrays
+            int from = mHead + fromIndex;
+            int to = mHead + toIndex;
+            System.arraycopy(mXs, from, mXs, to, count);
+            System.arraycopy(mYs, from, mYs, to, count);
+            if (mColors != null) {
+                System.arraycopy(mColors, from, mColors, to, count);
+            }
+            if (mSelectedColors != null) {
+                System.arraycopy(mSelectedColors, from, mSelectedColors, to, count);
+            }
+            if (mIds != null) {
+                System.arraycopy(mIds, from, mIds, to, count);
+            }
+            return;
+        }
+        boolean forward = toIndex > fromIndex;
+        for (int k = 0; k < count; k++) {
+            int i = forward ? count - 1 - k : k;
+            int from = position(fromIndex + i);
+            int to = position(toIndex + i);
+            mXs[to] = mXs[from];
+            mYs[to] = mYs[from];
+            if (mColors != null) {
+                mColors[to] = mColors[from];
+            }
+            if (mSelectedColors != null) {
+                mSelectedColors[to] = mSelectedColors[from];
+            }
+            if (mIds != null) {
+                mIds[to] = mIds[from];
+            }
+        }
+    }
+
+    /**
+     * Flags the bounds of y if the points in [from, to), which are about to be removed, hold
+     * one of them.
+     */
+    private void excludeYs(int from, int to) {
+        for (int i = from; i < to && mYBoundsValid; i++) {
+            float y = mYs[position(i)];
+            if (y <= mMinY || y >= mMaxY) {
+                mYBoundsValid = false;
+            }
+        }
+    }
+
+    /**
+     * Removes the first count points by moving the start of the line forward.
+     */
+    private void removeFirst(int count) {
+        if (count <= 0) {
+            return;
+        }
+        excludeYs(0, count);
+        mHead = mSize == count ? 0 : position(count);
+        mSize -= count;
+        mModCount++;
+        mEditCount++;
+        mFrontEditCount++;
+        mYWindow.removeFirst(count);
+        if (mPyramid != null) {
+            mPyramid.removeFirst(count);
+        }
+        if (mSize == 0) {
+            resetYBounds();
+        }
+    }
+
+    /**
+     * @return false if nothing had to be stored because the line has no point colors yet
+     */
+    private boolean storePointColor(int index, int color) {
+        if (mColors == null) {
+            if (color == LinePoint.DEFAULT_COLOR) {
+                return false;
+            }
+            mColors = newColorArray(mXs.length, LinePoint.DEFAULT_COLOR);
+        }
+        mColors[position(index)] = color;
+        return true;
+    }
+
+    /**
+     * Called on every change to the points other than appending them or removing them from
+     * the start, which the levels of detail cannot follow.
+     */
+    private void invalidatePyramid() {
+        if (mPyramid != null) {
+            mPyramid.invalidate();
+        }
+    }
+
+    /**
+     * Drops the points that no longer fit the capacity or time window.
+     */
+    private void applyLimits() {
+        if (mSource != null) {
+            return;
+        }
+        if (mCapacity > 0 && mSize > mCapacity) {
+            removeFirst(mSize - mCapacity);
+        }
+        if (mTimeWindow > 0 && mSize > 0) {
+            removeFirst(lowerBound(getMaxX() - mTimeWindow));
+        }
+        if (mCapacity > 0 && mXs.length > mCapacity) {
+            // Merging a batch may have grown the arrays past the capacity
+            resize(mCapacity);
+        }
+    }
+
+    /**
+     * Moves the points so the first one is at the start of the arrays, which the methods that
+     * insert or remove in the middle of the line rely on.
+     */
+    private void linearize() {
+        if (mHead != 0) {
+            resize(mXs.length);
+        }
+    }
+
+    private void insert(int index, float x, float y, int color, int selectedColor) {
+        ensureCapacity(mSize + 1);
+        int moved = mSize - index;
+        if (moved > 0) {
+            mEditCount++;
+            invalidatePyramid();
+            mYWindow.invalidate();
+            System.arraycopy(mXs, index, mXs, index + 1, moved);
+            System.arraycopy(mYs, index, mYs, index + 1, moved);
+            if (mColors != null) {
+                System.arraycopy(mColors, index, mColors, index + 1, moved);
+            }
+            if (mSelectedColors != null) {
+                System.arraycopy(mSelectedColors, index, mSelectedColors, index + 1, moved);
+            }
+            if (mIds != null) {
+                System.arraycopy(mIds, index, mIds, index + 1, moved);
+            }
+        }
+        mXs[index] = x;
+        mYs[index] = y;
+        if (mIds != null) {
+            mIds[index] = mNextId++;
+        }
+        mSize++;
+        mModCount++;
+        includeY(y);
+        mYWindow.add(y);
+        if (mColors != null) {
+            mColors[index] = LinePoint.DEFAULT_COLOR;
+        }
+        if (mSelectedColors != null) {
+            mSelectedColors[index] = LinePoint.NO_COLOR;
+        }
+        storePointColor(index, color);
+        setPointSelectedColor(index, selectedColor);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mXs.length) {
+            return;
+        }
+        int newCapacity = Math.max(Math.max(capacity, mXs.length + (mXs.length >> 1)), MIN_CAPACITY);
+        if (mCapacity > 0) {
+            // A line with a capacity never needs more room than that
+            newCapacity = Math.max(Math.min(newCapacity, mCapacity), capacity);
+        }
+        resize(newCapacity);
+    }
+
+    /**
+     * Copies the points into arrays of the given length, starting at position 0.
+     */
+    private void resize(int length) {
+        // Arrays.copyOf is not available before API level 9
+        float[] xs = new float[length];
+        float[] ys = new float[length];
+        copyPoints(mXs, xs);
+        copyPoints(mYs, ys);
+        if (mColors != null) {
+            int[] colors = newColorArray(length, LinePoint.DEFAULT_COLOR);
+            copyPoints(mColors, colors);
+            mColors = colors;
+        }
+        if (mSelectedColors != null) {
+            int[] selectedColors = newColorArray(length, LinePoint.NO_COLOR);
+            copyPoints(mSelectedColors, selectedColors);
+            mSelectedColors = selectedColors;
+        }
+        if (mIds != null) {
+            int[] ids = new int[length];
+            copyPoints(mIds, ids);
+            mIds = ids;
+        }
+        mXs = xs;
+        mYs = ys;
+        mHead = 0;
+    }
+
+    /**
+     * Copies the points, which may wrap around the end of the arrays, to the start of copy.
+     */
+    private void copyPoints(Object values, Object copy) {
+        int first = Math.min(mSize, mXs.length - mHead);
+        System.arraycopy(values, mHead, copy, 0, first);
+        System.arraycopy(values, 0, copy, first, mSize - first);
+    }
+
+    private static int[] newColorArray(int length, int fill) {
+        int[] colors = new int[length];
+        Arrays.fill(colors, fill);
+        return colors;
+    }
+
+    private static boolean isSorted(float[] values, int count) {
+        for (int i = 1; i < count; i++) {
+            if (values[i] < values[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stable merge sort of the indices 0..count-1 by their key.
+     */
+    private static int[] sortedOrder(float[] keys, int count) {
+        int[] order = new int[count];
+        int[] buffer = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        for (int width = 1; width < count; width *= 2) {
+            for (int low = 0; low < count - width; low += 2 * width) {
+                int mid = low + width;
+                int high = Math.min(low + 2 * width, count);
+                int left = low;
+                int right = mid;
+                for (int k = low; k < high; k++) {
+                    if (left < mid && (right >= high || keys[order[left]] <= keys[order[right]])) {
+                        buffer[k] = order[left++];
+                    } else {
+                        buffer[k] = order[right++];
+                    }
+                }
+                System.arraycopy(buffer, low, order, low, high - low);
+            }
+        }
+        return order;
+    }
+
+    private static float[] permute(float[] values, int[] order) {
+        float[] permuted = new float[order.length];
+        for (int i = 0; i < order.length; i++) {
+            permuted[i] = values[order[i]];
+        }
+        return permuted;
+    }
+
+    private static int[] permute(int[] values, int[] order) {
+        int[] permuted = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            permuted[i] = values[order[i]];
+        }
+        return permuted;
+    }
+
+    private void checkOwnPoints() {
+        if (mSource != null) {
+            throw new IllegalStateException("The points of a line with a data source can "
+                    + "only be changed through the source");
+        }
+    }
+
+    private void checkPostable() {
+        if (mHasSource) {
+            throw new IllegalStateException("Points cannot be posted to a line with a data "
+                    + "source");
+        }
+    }
+
+    private void checkDataSource() {
+        if (mSource == null) {
+            throw new IllegalStateException("The line has no data source");
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Invalid index " + index + ", size is " + mSize);
+        }
+    }
+
+    /**
+     * @return a point holding a copy of the values of the point at the index
+     */
+    private LinePoint copyPoint(int index) {
+        LinePoint point = new LinePoint(getX(index), getY(index));
+        point.setColor(getPointColor(index));
+        point.setSelectedColor(getRawPointSelectedColor(index));
+        return point;
+    }
+
 }
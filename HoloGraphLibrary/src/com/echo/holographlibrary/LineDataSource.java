@@ -0,0 +1,34 @@
+package com.echo.holographlibrary;
+
+/**
+ * Points of a {@link Line} that live outside of it, for example in arrays or buffers the app
+ * already has. A line backed by a source reads the points from it as it draws them instead of
+ * keeping its own copy, see {@link Line#setDataSource(LineDataSource)}.
+ * <p/>
+ * Points must be sorted by x. The line only looks at as many points as the source had when
+ * it was set or last announced with {@link Line#notifyDataSetChanged()} or
+ * {@link Line#notifyPointsAppended()}, so a source may grow in between as long as the points
+ * already announced stay the same.
+ */
+public interface LineDataSource {
+
+    /**
+     * @return the number of points
+     */
+    int size();
+
+    float getX(int index);
+
+    float getY(int index);
+
+    /**
+     * Optionally copies the points in [from, to) at once, which is cheaper than reading them
+     * one by one for sources that hold them in arrays or buffers.
+     *
+     * @param xs receives the x of the point at from at index 0, and so on
+     * @param ys receives the y values the same way
+     * @return false if the source does not support reading in bulk, the points are then read
+     * with {@link #getX(int)} and {@link #getY(int)}
+     */
+    boolean read(float[] xs, float[] ys, int from, int to);
+}
@@ -28,45 +28,106 @@ import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Path;
-import android.graphics.Path.Direction;
-import android.graphics.Point;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
-import android.graphics.Region;
+import android.graphics.Matrix;
+import android.os.Looper;
 import android.util.AttributeSet;
 import android.util.TypedValue;
+import android.view.GestureDetector;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
-
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Draws {@link Line}s. Like any view it must be changed on the UI thread, except that lines
+ * can be added and removed, and the points of a line changed through the methods of the graph,
+ * from any thread. Points added from other threads through {@link #addPointToLine(int, float,
+ * float)}, {@link #addPointsToLine(int, float[], float[])} and {@link #appendToLine} are queued
+ * and added on the UI thread right before the next frame, so the graph never waits for them
+ * and always draws whole batches. Other changes made from other threads are posted to the UI
+ * thread, and applied after the points queued before them. Lines must not be changed
+ * directly, other than through {@link Line#postPoint(float, float)} and the other post
+ * methods, while the graph shows them, except on the UI thread.
+ */
 public class LineGraph extends View {
 
+    /**
+     * Draw every point of every line.
+     */
+    public static final int DECIMATION_NONE = 0;
+    /**
+     * Reduce every line to about one point per horizontal pixel with
+     * Largest-Triangle-Three-Buckets before drawing it.
+     */
+    public static final int DECIMATION_LTTB = 1;
+    /**
+     * Keep the first, last, lowest and highest point of every horizontal pixel column. Unlike
+     * {@link #DECIMATION_LTTB} this never hides a spike.
+     */
+    public static final int DECIMATION_M4 = 2;
+    /**
+     * Used by {@link Line#setDecimation(int)} to fall back to the decimation of the graph.
+     */
+    public static final int DECIMATION_DEFAULT = -1;
+
     private static final int DEFAULT_PADDING = 10;
+    // How far a gesture may zoom from the layout of the lines before they are laid out again
+    private static final float MAX_GESTURE_SCALE = 2;
     private final int mDipPadding;
     private final int mFillColor;
     private final int mAxisColor;
     private final float mStrokeWidth;
     private final int mStrokeSpacing;
     private final int mBackgroundColor;
-    private ArrayList<Line> mLines = new ArrayList<Line>();
-    private Paint mPaint = new Paint();
+    // Replaced rather than changed, so the UI thread can draw a list while other threads add
+    // lines. Guarded by mLinesLock for writing.
+    private volatile ArrayList<Line> mLines = new ArrayList<Line>();
+    private final Object mLinesLock = new Object();
+    // Set when points were posted to a line from another thread
+    private final AtomicBoolean mHasPostedPoints = new AtomicBoolean();
     private float mMinY = 0, mMinX = 0;
     private float mMaxY = 0, mMaxX = 0;
     private double mRangeYRatio = 0;
     private double mRangeXRatio = 0;
     private boolean mUserSetMaxX = false;
+    private boolean mXLimitsDirty = false;
+    private boolean mYLimitsDirty = false;
     private int mLineToFill = -1;
-    private int mSelectedIndex = -1;
+    private int mDecimation = DECIMATION_NONE;
+    private int mSelectedLine = -1;
+    private int mSelectedPoint = -1;
+    private int mHitLine = -1;
+    private int mHitPoint = -1;
     private OnPointClickedListener mListener;
-    private Bitmap mFullImage;
     // Since this is a new addition, it has to default to false to be backwards compatible
     private boolean mUseDips;
-    private Path mPath = new Path();
-    private PorterDuffXfermode mXfermode = new PorterDuffXfermode(PorterDuff.Mode.CLEAR);
-    private Canvas mCanvas;
+    private final LineGraphRenderer mRenderer = new LineGraphRenderer();
+    private final LineGraphRenderer.Frame mFrame = new LineGraphRenderer.Frame();
+    private boolean mRenderInBackground;
+    private boolean mAttached;
+    private LineGraphRenderThread mRenderThread;
+    private LineGraphScroller mScroller;
+    private boolean mHasViewport;
+    private float mViewportMinX, mViewportMaxX;
+    private boolean mPanZoomEnabled;
+    private boolean mPanningOrZooming;
+    private GestureDetector mGestureDetector;
+    // While panning or zooming, the lines are laid out for this x range and then transformed
+    private LineRenderCache[] mReferenceCaches;
+    private float mReferenceMinX, mReferenceMaxX;
+    private final Matrix mGestureTransform = new Matrix();
+    private ScaleGestureDetector mScaleGestureDetector;
+    private final InvalidationBatcher mInvalidator = new InvalidationBatcher(this);
+    private final AsyncDataSwap mDataSwap = new AsyncDataSwap(this);
+    private float mSidePadding, mBottomPadding;
+    private float mUsableWidth, mUsableHeight;
+    private float mDrawnMinX, mDrawnMaxX;
+    private float mDrawnMinY, mDrawnMaxY;
 
     public LineGraph(Context context) {
         this(context, null);
@@ -100,15 +161,33 @@ public class LineGraph extends View {
     }
 
     public void removeAllLines() {
-        while (mLines.size() > 0) {
-            mLines.remove(0);
+        mDataSwap.cancel();
+        synchronized (mLinesLock) {
+            mLines = new ArrayList<Line>();
         }
-        postInvalidate();
+        mInvalidator.invalidate();
     }
 
     public void addLine(Line line) {
-        mLines.add(line);
-        postInvalidate();
+        synchronized (mLinesLock) {
+            ArrayList<Line> lines = new ArrayList<Line>(mLines.size() + 1);
+            lines.addAll(mLines);
+            lines.add(line);
+            mLines = lines;
+        }
+        mInvalidator.invalidate();
+    }
+
+    /**
+     * Holds back redraws until the matching {@link #endBatch()}, so many changes to the graph
+     * cost a single redraw. Batches can be nested.
+     */
+    public void beginBatch() {
+        mInvalidator.beginBatch();
+    }
+
+    public void endBatch() {
+        mInvalidator.endBatch();
     }
 
     public void addPointToLine(int lineIndex, double x, double y) {
@@ -116,9 +195,14 @@ public class LineGraph extends View {
     }
 
     public void addPointToLine(int lineIndex, float x, float y) {
-        LinePoint p = new LinePoint(x, y);
-
-        addPointToLine(lineIndex, p);
+        Line line = getLine(lineIndex);
+        if (!isUiThread()) {
+            line.postPoint(x, y);
+            onPointsPosted();
+            return;
+        }
+        line.addPoint(x, y);
+        invalidateLimits();
     }
 
     public double getRangeYRatio() {
@@ -137,77 +221,257 @@ public class LineGraph extends View {
         mRangeXRatio = rr;
     }
 
-    public void addPointToLine(int lineIndex, LinePoint point) {
-        Line line = getLine(lineIndex);
-        line.addPoint(point);
-        mLines.set(lineIndex, line);
-        resetLimits();
-        postInvalidate();
+    public void addPointToLine(int lineIndex, final LinePoint point) {
+        final Line line = getLine(lineIndex);
+        changeLine(new Runnable() {
+            @Override
+            public void run() {
+                line.addPoint(point);
+                invalidateLimits();
+            }
+        });
+    }
+
+    public void addPointsToLine(int lineIndex, final LinePoint[] points) {
+        final Line line = getLine(lineIndex);
+        changeLine(new Runnable() {
+            @Override
+            public void run() {
+                line.addPoints(points);
+                invalidateLimits();
+            }
+        });
     }
 
-    public void addPointsToLine(int lineIndex, LinePoint[] points) {
+    public void addPointsToLine(int lineIndex, float[] xs, float[] ys) {
         Line line = getLine(lineIndex);
-        for (LinePoint point : points) {
-            line.addPoint(point);
+        if (!isUiThread()) {
+            line.postPoints(xs, ys);
+            onPointsPosted();
+            return;
+        }
+        line.addPoints(xs, ys);
+        invalidateLimits();
+    }
+
+    /**
+     * Adds the remaining x/y pairs of the buffer to a line, see
+     * {@link Line#addPoints(FloatBuffer)}. The limits and the graph are updated once for the
+     * whole buffer.
+     */
+    public void appendToLine(int lineIndex, FloatBuffer interleavedXY) {
+        if (!isUiThread()) {
+            getLine(lineIndex).postPoints(interleavedXY);
+            onPointsPosted();
+            return;
+        }
+        getLine(lineIndex).addPoints(interleavedXY);
+        invalidateLimits();
+    }
+
+    /**
+     * Adds the remaining x/y pairs of floats in the buffer to a line, in the byte order of
+     * the buffer, see {@link Line#addPoints(ByteBuffer)}.
+     */
+    public void appendToLine(int lineIndex, ByteBuffer interleavedXY) {
+        if (!isUiThread()) {
+            getLine(lineIndex).postPoints(interleavedXY);
+            onPointsPosted();
+            return;
         }
-        mLines.set(lineIndex, line);
-        resetLimits();
-        postInvalidate();
+        getLine(lineIndex).addPoints(interleavedXY);
+        invalidateLimits();
+    }
+
+    /**
+     * @return the smallest float that is not less than the value
+     */
+    private static float ceilToFloat(double value) {
+        float rounded = (float) value;
+        return rounded < value ? nextFloat(rounded, true) : rounded;
+    }
+
+    /**
+     * @return the largest float that is not greater than the value
+     */
+    private static float floorToFloat(double value) {
+        float rounded = (float) value;
+        return rounded > value ? nextFloat(rounded, false) : rounded;
+    }
+
+    /**
+     * @return the float next to a finite or infinite value, in the given direction
+     */
+    private static float nextFloat(float value, boolean up) {
+        // Math.nextUp and Math.nextAfter are not available before API level 9
+        if (value == 0) {
+            return up ? Float.MIN_VALUE : -Float.MIN_VALUE;
+        }
+        int bits = Float.floatToRawIntBits(value);
+        return Float.intBitsToFloat((value > 0) == up ? bits + 1 : bits - 1);
+    }
+
+    private static boolean isUiThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    /**
+     * Runs a change to a line right away on the UI thread, and posts it there from other
+     * threads. A posted change first adds the points queued before it, so changes and queued
+     * points are applied in the order they were made.
+     */
+    private void changeLine(final Runnable change) {
+        if (isUiThread()) {
+            change.run();
+            return;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<Line> lines;
+                synchronized (mLinesLock) {
+                    lines = mLines;
+                }
+                addPostedPoints(lines);
+                change.run();
+            }
+        });
+    }
+
+    /**
+     * Schedules a frame after points were posted to a line from another thread. Only the
+     * first post before the frame schedules it.
+     */
+    private void onPointsPosted() {
+        if (mHasPostedPoints.compareAndSet(false, true)) {
+            mInvalidator.invalidate();
+        }
+    }
+
+    /**
+     * Adds the points posted to the lines from other threads.
+     */
+    private void addPostedPoints(ArrayList<Line> lines) {
+        if (!mHasPostedPoints.getAndSet(false)) {
+            return;
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).addPostedPoints()) {
+                mXLimitsDirty = true;
+                mYLimitsDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Redraws a line backed by a {@link LineDataSource} after the points of the source
+     * changed, see {@link Line#notifyDataSetChanged()}.
+     */
+    public void notifyDataSetChanged(int lineIndex) {
+        final Line line = getLine(lineIndex);
+        changeLine(new Runnable() {
+            @Override
+            public void run() {
+                line.notifyDataSetChanged();
+                invalidateLimits();
+            }
+        });
+    }
+
+    /**
+     * Redraws a line backed by a {@link LineDataSource} after points were added to the end of
+     * the source, see {@link Line#notifyPointsAppended()}.
+     */
+    public void notifyPointsAppended(int lineIndex) {
+        final Line line = getLine(lineIndex);
+        changeLine(new Runnable() {
+            @Override
+            public void run() {
+                line.notifyPointsAppended();
+                invalidateLimits();
+            }
+        });
+    }
+
+    /**
+     * Adds the points a line holds back for reordering, see {@link Line#flushReorderBuffer()}.
+     */
+    public void flushReorderBuffer(int lineIndex) {
+        final Line line = getLine(lineIndex);
+        changeLine(new Runnable() {
+            @Override
+            public void run() {
+                line.flushReorderBuffer();
+                invalidateLimits();
+            }
+        });
     }
 
     public void removeAllPointsAfter(int lineIndex, double x) {
-        removeAllPointsBetween(lineIndex, x, getMaxX());
+        removeAllPointsBetween(lineIndex, x, Double.POSITIVE_INFINITY);
     }
 
     public void removeAllPointsBefore(int lineIndex, double x) {
-        removeAllPointsBetween(lineIndex, getMinX(), x);
+        removeAllPointsBetween(lineIndex, Double.NEGATIVE_INFINITY, x);
     }
 
     public void removeAllPointsBetween(int lineIndex, double startX, double finishX) {
-        Line line = getLine(lineIndex);
-        LinePoint[] pts = new LinePoint[line.getPoints().size()];
-        pts = line.getPoints().toArray(pts);
-        for (LinePoint point : pts) {
-            if (point.getX() >= startX && point.getX() <= finishX) {
-                line.removePoint(point);
+        final Line line = getLine(lineIndex);
+        // Rounded inwards, so a point just outside the range is not removed
+        final float start = ceilToFloat(startX);
+        final float finish = floorToFloat(finishX);
+        changeLine(new Runnable() {
+            @Override
+            public void run() {
+                line.removePointsBetween(start, finish);
+                invalidateLimits();
             }
-        }
-        mLines.set(lineIndex, line);
-        resetLimits();
-        postInvalidate();
+        });
     }
 
-    public void removePointsFromLine(int lineIndex, LinePoint[] points) {
-        Line line = getLine(lineIndex);
-        for (LinePoint point : points) {
-            line.removePoint(point);
-        }
-        mLines.set(lineIndex, line);
-        resetLimits();
-        postInvalidate();
+    public void removePointsFromLine(int lineIndex, final LinePoint[] points) {
+        final Line line = getLine(lineIndex);
+        changeLine(new Runnable() {
+            @Override
+            public void run() {
+                for (LinePoint point : points) {
+                    line.removePoint(point);
+                }
+                invalidateLimits();
+            }
+        });
     }
 
-    public void removePointFromLine(int lineIndex, float x, float y) {
-        LinePoint p = null;
-        Line line = getLine(lineIndex);
-        p = line.getPoint(x, y);
-        removePointFromLine(lineIndex, p);
+    public void removePointFromLine(int lineIndex, final float x, final float y) {
+        final Line line = getLine(lineIndex);
+        changeLine(new Runnable() {
+            @Override
+            public void run() {
+                line.removePoint(line.getPoint(x, y));
+                invalidateLimits();
+            }
+        });
     }
 
-    public void removePointFromLine(int lineIndex, LinePoint point) {
-        Line line = getLine(lineIndex);
-        line.removePoint(point);
-        mLines.set(lineIndex, line);
-        resetLimits();
-        postInvalidate();
+    public void removePointFromLine(int lineIndex, final LinePoint point) {
+        final Line line = getLine(lineIndex);
+        changeLine(new Runnable() {
+            @Override
+            public void run() {
+                line.removePoint(point);
+                invalidateLimits();
+            }
+        });
     }
 
     public void resetYLimits() {
+        mYLimitsDirty = false;
         float range = getMaxY() - getMinY();
         setRangeY(getMinY() - range * getRangeYRatio(), getMaxY() + range * getRangeYRatio());
     }
 
     public void resetXLimits() {
+        mXLimitsDirty = false;
         float range = getMaxX() - getMinX();
         setRangeX(getMinX() - range * getRangeXRatio(), getMaxX() + range * getRangeXRatio());
     }
@@ -217,21 +481,90 @@ public class LineGraph extends View {
         resetXLimits();
     }
 
+    /**
+     * Marks the limits as out of date after the points changed. They are reset once, when they
+     * are next needed, rather than after every change.
+     */
+    private void invalidateLimits() {
+        mYLimitsDirty = true;
+        mXLimitsDirty = true;
+        mInvalidator.invalidate();
+    }
+
+    private void updateLimits() {
+        if (mYLimitsDirty) {
+            resetYLimits();
+        }
+        if (mXLimitsDirty) {
+            resetXLimits();
+        }
+    }
+
     public ArrayList<Line> getLines() {
         return mLines;
     }
 
     public void setLineToFill(int indexOfLine) {
         mLineToFill = indexOfLine;
-        postInvalidate();
+        mInvalidator.invalidate();
     }
 
     public int getLineToFill() {
         return mLineToFill;
     }
 
+    public int getDecimation() {
+        return mDecimation;
+    }
+
+    /**
+     * Sets how lines are reduced before drawing, one of {@link #DECIMATION_NONE},
+     * {@link #DECIMATION_LTTB} or {@link #DECIMATION_M4}. Decimated lines are cached until
+     * their points or the viewport change. Lines can override this with
+     * {@link Line#setDecimation(int)}.
+     */
+    public void setDecimation(int decimation) {
+        mDecimation = decimation;
+        mInvalidator.invalidate();
+    }
+
+    /**
+     * Shows the given lines. The list must not be changed afterwards, other than through the
+     * graph.
+     */
     public void setLines(ArrayList<Line> lines) {
-        mLines = lines;
+        mDataSwap.cancel();
+        swapLines(lines);
+    }
+
+    /**
+     * Like {@link #setLines(ArrayList)}, but finds the bounds of the lines and builds their
+     * levels of detail on the given executor first, and only then shows them. The lines
+     * must not be changed until the listener, which may be null, is told they were drawn.
+     * Setting lines again before then drops these.
+     */
+    public void setLinesAsync(final ArrayList<Line> lines, Executor executor,
+                              OnDataShownListener listener) {
+        mDataSwap.start(executor, new AsyncDataSwap.Preparation() {
+            @Override
+            public void prepare() {
+                for (int i = 0; i < lines.size(); i++) {
+                    lines.get(i).prepare();
+                }
+            }
+
+            @Override
+            public void apply() {
+                swapLines(lines);
+            }
+        }, listener);
+    }
+
+    private void swapLines(ArrayList<Line> lines) {
+        synchronized (mLinesLock) {
+            mLines = lines;
+        }
+        invalidateLimits();
     }
 
     public Line getLine(int index) {
@@ -243,6 +576,7 @@ public class LineGraph extends View {
     }
 
     public void setRangeY(float min, float max) {
+        mYLimitsDirty = false;
         mMinY = min;
         mMaxY = max;
     }
@@ -253,6 +587,7 @@ public class LineGraph extends View {
     }
 
     public void setRangeX(float min, float max) {
+        mXLimitsDirty = false;
         mMinX = min;
         mMaxX = max;
         mUserSetMaxX = true;
@@ -264,10 +599,12 @@ public class LineGraph extends View {
     }
 
     public float getMaxY() {
-        float max = mLines.get(0).getPoint(0).getY();
+        float max = 0;
+        boolean first = true;
         for (Line line : mLines) {
-            for (LinePoint point : line.getPoints()) {
-                max = point.getY() > max ? point.getY() : max;
+            if (line.getSize() > 0) {
+                max = first || line.getMaxY() > max ? line.getMaxY() : max;
+                first = false;
             }
         }
         mMaxY = max;
@@ -275,10 +612,12 @@ public class LineGraph extends View {
     }
 
     public float getMinY() {
-        float min = mLines.get(0).getPoint(0).getY();
+        float min = 0;
+        boolean first = true;
         for (Line line : mLines) {
-            for (LinePoint point : line.getPoints()) {
-                min = point.getY() < min ? point.getY() : min;
+            if (line.getSize() > 0) {
+                min = first || line.getMinY() < min ? line.getMinY() : min;
+                first = false;
             }
         }
         mMinY = min;
@@ -286,18 +625,22 @@ public class LineGraph extends View {
     }
 
     public float getMinLimY() {
+        updateLimits();
         return mMinY;
     }
 
     public float getMaxLimY() {
+        updateLimits();
         return mMaxY;
     }
 
     public float getMinLimX() {
+        updateLimits();
         return mMinX;
     }
 
     public float getMaxLimX() {
+        updateLimits();
         if (mUserSetMaxX) {
             return mMaxX;
         } else {
@@ -306,22 +649,25 @@ public class LineGraph extends View {
     }
 
     public float getMaxX() {
-        float max = mLines.size() > 0 ? mLines.get(0).getPoint(0).getX() : 0;
+        float max = 0;
+        boolean first = true;
         for (Line line : mLines) {
-            for (LinePoint point : line.getPoints()) {
-                max = point.getX() > max ? point.getX() : max;
+            if (line.getSize() > 0) {
+                max = first || line.getMaxX() > max ? line.getMaxX() : max;
+                first = false;
             }
         }
         mMaxX = max;
         return mMaxX;
-
     }
 
     public float getMinX() {
-        float min = mLines.size() > 0 ? mLines.get(0).getPoint(0).getX() : 0;
+        float min = 0;
+        boolean first = true;
         for (Line line : mLines) {
-            for (LinePoint point : line.getPoints()) {
-                min = point.getX() < min ? point.getX() : min;
+            if (line.getSize() > 0) {
+                min = first || line.getMinX() < min ? line.getMinX() : min;
+                first = false;
             }
         }
         mMinX = min;
@@ -329,13 +675,31 @@ public class LineGraph extends View {
     }
 
     public void onDraw(Canvas canvas) {
-        if (null == mFullImage) {
-            mFullImage = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
-            mCanvas = new Canvas(mFullImage);
+        prepareFrame();
+        if (mRenderThread != null) {
+            // The data is only on screen once the render thread has drawn it and it is blitted
+            mRenderThread.submit(mFrame, mDataSwap.takeShownListeners());
+            Bitmap frontImage = mRenderThread.getFrontImage();
+            if (frontImage != null) {
+                canvas.drawBitmap(frontImage, 0, 0, null);
+                mDataSwap.notifyShown(mRenderThread.takeShownListeners());
+            }
+            return;
+        }
+        mDataSwap.onDraw();
+
+        if (mScroller != null && mFrame.mTransform == null) {
+            canvas.drawBitmap(mScroller.draw(mFrame), 0, 0, null);
+            return;
         }
 
-        mCanvas.drawColor(mBackgroundColor);
-        mPaint.reset();
+        mRenderer.draw(canvas, mFrame);
+    }
+
+    /**
+     * Lays out the lines and fills mFrame with everything needed to draw them.
+     */
+    private void prepareFrame() {
         float bottomPadding = 10, topPadding = 10;
         float sidePadding = 10;
         if (mUseDips) {
@@ -346,159 +710,189 @@ public class LineGraph extends View {
         float usableHeight = getHeight() - bottomPadding - topPadding;
         float usableWidth = getWidth() - 2 * sidePadding;
 
+        // Lines added by other threads from here on are drawn in the next frame
+        ArrayList<Line> lines = mLines;
+        addPostedPoints(lines);
         float maxY = getMaxLimY();
         float minY = getMinLimY();
         float maxX = getMaxLimX();
         float minX = getMinLimX();
+        if (mHasViewport) {
+            minX = mViewportMinX;
+            maxX = mViewportMaxX;
+        }
+        if (mScroller != null && mRenderThread == null && !mPanningOrZooming
+                && mScroller.scroll(lines, minX, maxX, minY, maxY, usableWidth)) {
+            minX = mScroller.getMinX();
+            maxX = mScroller.getMaxX();
+        }
 
+        // Remember the projection so touches can be mapped back onto points
+        mSidePadding = sidePadding;
+        mBottomPadding = bottomPadding;
+        mUsableWidth = usableWidth;
+        mUsableHeight = usableHeight;
+        mDrawnMinX = minX;
+        mDrawnMaxX = maxX;
+        mDrawnMinY = minY;
+        mDrawnMaxY = maxY;
+        int columns = Math.max(3, (int) usableWidth);
+
+        LineGraphRenderer.Frame frame = mFrame;
+        frame.mWidth = getWidth();
+        frame.mHeight = getHeight();
+        frame.mSidePadding = sidePadding;
+        frame.mBottomPadding = bottomPadding;
+        frame.mBackgroundColor = mBackgroundColor;
+        frame.mAxisColor = mAxisColor;
+        frame.mAxisStrokeWidth = 2 * getResources().getDisplayMetrics().density;
+        frame.mLineToFill = mLineToFill;
+        frame.mFillColor = mFillColor;
+        frame.mFillStrokeWidth = mStrokeWidth;
+        frame.mFillStrokeSpacing = mStrokeSpacing;
+        frame.mSelectionLine = -1;
+        frame.mTransform = null;
+
+        float bottom = getHeight() - bottomPadding;
+        frame.mLineCount = lines.size();
+        if (mPanningOrZooming && usableWidth > 0 && maxX > minX) {
+            prepareGestureFrame(lines, minX, maxX, minY, maxY, sidePadding, bottom,
+                    usableWidth, usableHeight);
+            return;
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            Line line = lines.get(i);
+            LineGraphRenderer.LineFrame lineFrame = frame.obtainLine(i);
+            LineGraphRenderer.prepareLine(lineFrame, line, getDecimation(line), columns,
+                    minX, maxX, minY, maxY, sidePadding, bottom, usableWidth, usableHeight);
+            lineFrame.mStrokeWidth = getStrokeWidth(line);
+            lineFrame.mPointRadius = getPointRadius(line);
+
+            if (line.isShowingPoints() && mSelectedLine == i && mListener != null
+                    && mSelectedPoint < line.getSize()) {
+                frame.mSelectionLine = i;
+                frame.mSelectionX = toXPixels(line.getX(mSelectedPoint));
+                frame.mSelectionY = toYPixels(line.getY(mSelectedPoint));
+                frame.mSelectionRadius = getPointRadius(line) * 2;
+                frame.mSelectionColor = line.getPointSelectedColor(mSelectedPoint);
+            }
+        }
+    }
 
-        int lineCount = 0;
-        for (Line line : mLines) {
-            int count = 0;
-            float lastXPixels = 0, newYPixels = 0;
-            float lastYPixels = 0, newXPixels = 0;
-
-            if (lineCount == mLineToFill) {
-                // Draw lines
-                mPaint.setColor(mFillColor);
-                mPaint.setStrokeWidth(mStrokeWidth);
-                for (int i = 10; i - getWidth() < getHeight(); i = i + mStrokeSpacing) {
-                    mCanvas.drawLine(
-                            i, getHeight() - bottomPadding,
-                            0, getHeight() - bottomPadding - i, mPaint);
-                }
-
-                // Erase lines above the line
-                mPaint.reset();
-                mPaint.setXfermode(mXfermode);
-                for (LinePoint p : line.getPoints()) {
-                    float yPercent = (p.getY() - minY) / (maxY - minY);
-                    float xPercent = (p.getX() - minX) / (maxX - minX);
-                    if (count == 0) {
-                        lastXPixels = sidePadding + (xPercent * usableWidth);
-                        lastYPixels = getHeight() - bottomPadding - (usableHeight * yPercent);
-                        mPath.moveTo(lastXPixels, lastYPixels);
-                    } else {
-                        newXPixels = sidePadding + (xPercent * usableWidth);
-                        newYPixels = getHeight() - bottomPadding - (usableHeight * yPercent);
-                        mPath.lineTo(newXPixels, newYPixels);
-                        mPath.moveTo(lastXPixels, lastYPixels);
-                        mPath.lineTo(newXPixels, newYPixels);
-                        mPath.lineTo(newXPixels, 0);
-                        mPath.lineTo(lastXPixels, 0);
-                        mPath.close();
-                        mCanvas.drawPath(mPath, mPaint);
-                        lastXPixels = newXPixels;
-                        lastYPixels = newYPixels;
-                    }
-                    count++;
-                }
+    /**
+     * Fills mFrame while the user drags or pinches. The lines are laid out once for a
+     * reference viewport, with a viewport width of margin on either side, and then only moved
+     * and stretched into place. They are laid out again when the viewport leaves that margin
+     * or is zoomed too far from the reference, and once the gesture ends.
+     */
+    private void prepareGestureFrame(ArrayList<Line> lines,
+                                     float minX, float maxX, float minY, float maxY,
+                                     float left, float bottom, float width, float height) {
+        float span = maxX - minX;
+        float referenceSpan = mReferenceMaxX - mReferenceMinX;
+        float scale = referenceSpan / span;
+        if (mReferenceCaches == null
+                || scale > MAX_GESTURE_SCALE || scale < 1 / MAX_GESTURE_SCALE
+                || minX < mReferenceMinX - referenceSpan
+                || maxX > mReferenceMaxX + referenceSpan) {
+            mReferenceMinX = minX;
+            mReferenceMaxX = maxX;
+            referenceSpan = span;
+            scale = 1;
+        }
+        if (mReferenceCaches == null || mReferenceCaches.length < lines.size()) {
+            mReferenceCaches = new LineRenderCache[lines.size()];
+        }
+        mGestureTransform.setScale(scale, 1, left, 0);
+        mGestureTransform.postTranslate((mReferenceMinX - minX) / span * width, 0);
+        mFrame.mTransform = mGestureTransform;
+
+        int columns = 3 * Math.max(3, (int) width);
+        for (int i = 0; i < lines.size(); i++) {
+            Line line = lines.get(i);
+            if (mReferenceCaches[i] == null) {
+                mReferenceCaches[i] = new LineRenderCache();
+            }
+            LineGraphRenderer.LineFrame lineFrame = mFrame.obtainLine(i);
+            LineGraphRenderer.prepareLine(lineFrame, line, mReferenceCaches[i],
+                    getDecimation(line), columns,
+                    mReferenceMinX - referenceSpan, mReferenceMaxX + referenceSpan, minY, maxY,
+                    left - width, bottom, 3 * width, height);
+            lineFrame.mStrokeWidth = getStrokeWidth(line);
+            lineFrame.mPointRadius = getPointRadius(line);
+        }
+    }
 
-                mPath.reset();
-                mPath.moveTo(0, getHeight() - bottomPadding);
-                mPath.lineTo(sidePadding, getHeight() - bottomPadding);
-                mPath.lineTo(sidePadding, 0);
-                mPath.lineTo(0, 0);
-                mPath.close();
-                mCanvas.drawPath(mPath, mPaint);
-
-                mPath.reset();
-                mPath.moveTo(getWidth(), getHeight() - bottomPadding);
-                mPath.lineTo(getWidth() - sidePadding, getHeight() - bottomPadding);
-                mPath.lineTo(getWidth() - sidePadding, 0);
-                mPath.lineTo(getWidth(), 0);
-                mPath.close();
-
-                mCanvas.drawPath(mPath, mPaint);
+    /**
+     * Draws the graph on a background thread, into one of two bitmaps, and only blits the last
+     * completed one in {@link #onDraw(Canvas)}. This keeps heavy graphs from blocking the UI
+     * thread, at the cost of a frame of latency and a second bitmap.
+     */
+    public void setRenderInBackground(boolean renderInBackground) {
+        if (mRenderInBackground == renderInBackground) {
+            return;
+        }
+        mRenderInBackground = renderInBackground;
+        if (renderInBackground) {
+            if (mAttached) {
+                mRenderThread = new LineGraphRenderThread(this);
             }
-            lineCount++;
+        } else if (mRenderThread != null) {
+            mDataSwap.restoreShownListeners(mRenderThread.quit());
+            mRenderThread = null;
         }
+        mInvalidator.invalidate();
+    }
 
-        // Draw x-axis line
-        mPaint.reset();
-        mPaint.setColor(mAxisColor);
-        mPaint.setStrokeWidth(2 * getResources().getDisplayMetrics().density);
-        mPaint.setAntiAlias(true);
-        mCanvas.drawLine(
-                sidePadding, getHeight() - bottomPadding,
-                getWidth() - sidePadding, getHeight() - bottomPadding, mPaint);
-        mPaint.reset();
+    public boolean isRenderingInBackground() {
+        return mRenderInBackground;
+    }
 
-        // Draw lines
-        for (Line line : mLines) {
-            int count = 0;
-            float lastXPixels = 0, newYPixels = 0;
-            float lastYPixels = 0, newXPixels = 0;
-
-            mPaint.setColor(line.getColor());
-            mPaint.setStrokeWidth(getStrokeWidth(line));
-
-            for (LinePoint p : line.getPoints()) {
-                float yPercent = (p.getY() - minY) / (maxY - minY);
-                float xPercent = (p.getX() - minX) / (maxX - minX);
-                if (count == 0) {
-                    lastXPixels = sidePadding + (xPercent * usableWidth);
-                    lastYPixels = getHeight() - bottomPadding - (usableHeight * yPercent);
-                } else {
-                    newXPixels = sidePadding + (xPercent * usableWidth);
-                    newYPixels = getHeight() - bottomPadding - (usableHeight * yPercent);
-                    mCanvas.drawLine(lastXPixels, lastYPixels, newXPixels, newYPixels, mPaint);
-                    lastXPixels = newXPixels;
-                    lastYPixels = newYPixels;
-                }
-                count++;
-            }
+    /**
+     * Redraws the graph incrementally while it scrolls because points are appended past its
+     * right edge, as in a streaming time series. The last picture is moved left and only what
+     * came into view is drawn, as long as the y range and the width of the x range stay the
+     * same. To make the picture move by whole pixels, the x range may be off by up to half a
+     * pixel. Filled lines and selected points are always redrawn in full, and this has no
+     * effect while rendering in background.
+     */
+    public void setScrollingOnAppend(boolean scrollingOnAppend) {
+        if (scrollingOnAppend == (mScroller != null)) {
+            return;
         }
+        mScroller = scrollingOnAppend ? new LineGraphScroller(mRenderer) : null;
+        mInvalidator.invalidate();
+    }
 
-        // Draw points
-        int pointCount = 0;
-        for (Line line : mLines) {
-            mPaint.setColor(line.getColor());
-            mPaint.setStrokeWidth(getStrokeWidth(line));
-            mPaint.setStrokeCap(Paint.Cap.ROUND);
-
-            if (line.isShowingPoints()) {
-                for (LinePoint p : line.getPoints()) {
-                    float yPercent = (p.getY() - minY) / (maxY - minY);
-                    float xPercent = (p.getX() - minX) / (maxX - minX);
-                    float xPixels = sidePadding + (xPercent * usableWidth);
-                    float yPixels = getHeight() - bottomPadding - (usableHeight * yPercent);
-
-                    int outerRadius;
-                    if (line.isUsingDips()) {
-                        outerRadius = getPixelForDip(line.getStrokeWidth() + 4);
-                    } else {
-                        outerRadius = line.getStrokeWidth() + 4;
-                    }
-                    int innerRadius = outerRadius / 2;
-
-                    mPaint.setColor(p.getColor());
-                    mCanvas.drawCircle(xPixels, yPixels, outerRadius, mPaint);
-                    mPaint.setColor(Color.WHITE);
-                    mCanvas.drawCircle(xPixels, yPixels, innerRadius, mPaint);
-
-                    // Create selection region
-                    Path path = p.getPath();
-                    path.reset();
-                    outerRadius *= 2;
-                    path.addCircle(xPixels, yPixels, outerRadius, Direction.CW);
-                    p.getRegion().set((int) (xPixels - outerRadius),
-                            (int) (yPixels - outerRadius),
-                            (int) (xPixels + outerRadius),
-                            (int) (yPixels + outerRadius));
-
-                    // Draw selection
-                    if (mSelectedIndex == pointCount && mListener != null) {
-                        mPaint.setColor(p.getSelectedColor());
-                        mCanvas.drawPath(p.getPath(), mPaint);
-                        mPaint.setAlpha(255);
-                    }
-
-                    pointCount++;
-                }
-            }
+    public boolean isScrollingOnAppend() {
+        return mScroller != null;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mAttached = true;
+        if (mRenderInBackground && mRenderThread == null) {
+            mRenderThread = new LineGraphRenderThread(this);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mAttached = false;
+        if (mRenderThread != null) {
+            mDataSwap.restoreShownListeners(mRenderThread.quit());
+            mRenderThread = null;
         }
-        canvas.drawBitmap(mFullImage, 0, 0, null);
+    }
+
+    private int getDecimation(Line line) {
+        int decimation = line.getDecimation();
+        if (decimation == DECIMATION_DEFAULT) {
+            decimation = mDecimation;
+        }
+        return decimation;
     }
 
     private int getStrokeWidth(Line line) {
@@ -511,6 +905,14 @@ public class LineGraph extends View {
         return strokeWidth;
     }
 
+    private int getPointRadius(Line line) {
+        if (line.isUsingDips()) {
+            return getPixelForDip(line.getStrokeWidth() + 4);
+        } else {
+            return line.getStrokeWidth() + 4;
+        }
+    }
+
     private int getPixelForDip(int dipValue) {
         return (int) TypedValue.applyDimension(
                 TypedValue.COMPLEX_UNIT_DIP,
@@ -518,54 +920,213 @@ public class LineGraph extends View {
                 getResources().getDisplayMetrics());
     }
 
-    @Override
-    public boolean onTouchEvent(MotionEvent event) {
+    /**
+     * Shows only the x range from minX to maxX. Unlike {@link #setRangeX(float, float)}, the
+     * viewport stays put when points are added. Only the points in view, and one more on
+     * either side, are laid out and drawn.
+     */
+    public void setViewport(float minX, float maxX) {
+        mHasViewport = true;
+        mViewportMinX = minX;
+        mViewportMaxX = maxX;
+        mInvalidator.invalidate();
+    }
 
-        Point point = new Point();
-        point.x = (int) event.getX();
-        point.y = (int) event.getY();
+    /**
+     * Shows the whole x range given by the limits again.
+     */
+    public void resetViewport() {
+        mHasViewport = false;
+        mInvalidator.invalidate();
+    }
 
-        int count = 0;
-        int lineCount = 0;
-        int pointCount;
+    public boolean hasViewport() {
+        return mHasViewport;
+    }
 
-        Region r = new Region();
-        for (Line line : mLines) {
-            pointCount = 0;
-            for (LinePoint p : line.getPoints()) {
-                r.setPath(p.getPath(), p.getRegion());
-
-                switch (event.getAction()) {
-                    default:
-                        break;
-                    case MotionEvent.ACTION_DOWN:
-                        if (r.contains(point.x, point.y)) {
-                            mSelectedIndex = count;
-                            postInvalidate();
-                        }
-                        break;
-                    case MotionEvent.ACTION_UP:
-                        if (count == mSelectedIndex
-                                && mListener != null
-                                && r.contains(point.x, point.y)) {
-                            mListener.onClick(lineCount, pointCount);
-                        }
-                        break;
-                }
-                pointCount++;
-                count++;
+    public float getViewportMinX() {
+        return mHasViewport ? mViewportMinX : getMinLimX();
+    }
+
+    public float getViewportMaxX() {
+        return mHasViewport ? mViewportMaxX : getMaxLimX();
+    }
+
+    /**
+     * Lets the user move the viewport by dragging and zoom it by pinching. A drag or pinch
+     * cancels the selection of a point.
+     */
+    public void setPanZoomEnabled(boolean panZoomEnabled) {
+        mPanZoomEnabled = panZoomEnabled;
+        if (panZoomEnabled && mGestureDetector == null) {
+            PanZoomListener listener = new PanZoomListener();
+            mGestureDetector = new GestureDetector(getContext(), listener);
+            mGestureDetector.setIsLongpressEnabled(false);
+            mScaleGestureDetector = new ScaleGestureDetector(getContext(), listener);
+        }
+    }
+
+    public boolean isPanZoomEnabled() {
+        return mPanZoomEnabled;
+    }
+
+    private class PanZoomListener extends GestureDetector.SimpleOnGestureListener
+            implements ScaleGestureDetector.OnScaleGestureListener {
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX,
+                                float distanceY) {
+            if (mUsableWidth <= 0) {
+                return false;
             }
-            lineCount++;
+            startPanZoom();
+            float shift = distanceX / mUsableWidth * (mViewportMaxX - mViewportMinX);
+            setViewport(mViewportMinX + shift, mViewportMaxX + shift);
+            return true;
+        }
+
+        @Override
+        public boolean onScaleBegin(ScaleGestureDetector detector) {
+            return mUsableWidth > 0;
+        }
+
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            startPanZoom();
+            // Zoom around the x value under the fingers
+            float span = mViewportMaxX - mViewportMinX;
+            float focus = mViewportMinX
+                    + (detector.getFocusX() - mSidePadding) / mUsableWidth * span;
+            float factor = detector.getScaleFactor();
+            float minX = focus - (focus - mViewportMinX) / factor;
+            float maxX = focus + (mViewportMaxX - focus) / factor;
+            if (maxX > minX && !Float.isInfinite(maxX - minX)) {
+                setViewport(minX, maxX);
+            }
+            return true;
+        }
+
+        @Override
+        public void onScaleEnd(ScaleGestureDetector detector) {
+        }
+    }
+
+    private void endPanZoom() {
+        if (mPanningOrZooming) {
+            mPanningOrZooming = false;
+            mReferenceCaches = null;
+            mInvalidator.invalidate();
+        }
+    }
+
+    private void startPanZoom() {
+        if (!mHasViewport) {
+            mHasViewport = true;
+            mViewportMinX = mDrawnMinX;
+            mViewportMaxX = mDrawnMaxX;
+        }
+        mPanningOrZooming = true;
+        mSelectedLine = -1;
+        mSelectedPoint = -1;
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (MotionEvent.ACTION_DOWN == event.getAction()) {
+            endPanZoom();
+        }
+        if (mPanZoomEnabled) {
+            mScaleGestureDetector.onTouchEvent(event);
+            mGestureDetector.onTouchEvent(event);
+        }
+        // Lay the lines out properly once the gesture is over
+        if (MotionEvent.ACTION_UP == event.getAction()
+                || MotionEvent.ACTION_CANCEL == event.getAction()) {
+            endPanZoom();
+        }
+        switch (event.getAction()) {
+            default:
+                break;
+            case MotionEvent.ACTION_DOWN:
+                if (findPoint(event.getX(), event.getY())) {
+                    mSelectedLine = mHitLine;
+                    mSelectedPoint = mHitPoint;
+                    mInvalidator.invalidate();
+                }
+                break;
+            case MotionEvent.ACTION_UP:
+                if (mSelectedLine != -1
+                        && mListener != null
+                        && findPoint(event.getX(), event.getY())
+                        && mHitLine == mSelectedLine
+                        && mHitPoint == mSelectedPoint) {
+                    mListener.onClick(mSelectedLine, mSelectedPoint);
+                }
+                break;
         }
         // Reset selection
         if (MotionEvent.ACTION_UP == event.getAction()
                 || MotionEvent.ACTION_CANCEL == event.getAction()) {
-            mSelectedIndex = -1;
-            postInvalidate();
+            mSelectedLine = -1;
+            mSelectedPoint = -1;
+            mInvalidator.invalidate();
         }
         return true;
     }
 
+    /**
+     * Finds the point closest to the touch among those whose selection area contains it, and
+     * stores it in mHitLine and mHitPoint. Points are sorted by x, so only the few points
+     * within one radius of the touch horizontally are looked at.
+     *
+     * @return true if a point was hit
+     */
+    private boolean findPoint(float touchX, float touchY) {
+        mHitLine = -1;
+        mHitPoint = -1;
+        float closest = Float.MAX_VALUE;
+        ArrayList<Line> lines = mLines;
+        for (int lineIndex = 0; lineIndex < lines.size(); lineIndex++) {
+            Line line = lines.get(lineIndex);
+            if (!line.isShowingPoints()) {
+                continue;
+            }
+            // Selection area is twice the size of the drawn point
+            float radius = 2 * getPointRadius(line);
+            int from = 0;
+            int to = line.getSize();
+            if (mDrawnMaxX > mDrawnMinX && mUsableWidth > 0) {
+                from = line.lowerBound(toXValue(touchX - radius));
+                to = line.upperBound(toXValue(touchX + radius));
+            }
+            for (int i = from; i < to; i++) {
+                float dx = toXPixels(line.getX(i)) - touchX;
+                float dy = toYPixels(line.getY(i)) - touchY;
+                float distance = dx * dx + dy * dy;
+                if (distance <= radius * radius && distance < closest) {
+                    closest = distance;
+                    mHitLine = lineIndex;
+                    mHitPoint = i;
+                }
+            }
+        }
+        return mHitLine != -1;
+    }
+
+    private float toXValue(float xPixels) {
+        return mDrawnMinX + (xPixels - mSidePadding) / mUsableWidth * (mDrawnMaxX - mDrawnMinX);
+    }
+
+    private float toXPixels(float x) {
+        float xPercent = (x - mDrawnMinX) / (mDrawnMaxX - mDrawnMinX);
+        return mSidePadding + (xPercent * mUsableWidth);
+    }
+
+    private float toYPixels(float y) {
+        float yPercent = (y - mDrawnMinY) / (mDrawnMaxY - mDrawnMinY);
+        return getHeight() - mBottomPadding - (mUsableHeight * yPercent);
+    }
+
     public void setOnPointClickedListener(OnPointClickedListener listener) {
         mListener = listener;
     }
@@ -0,0 +1,206 @@
+package com.echo.holographlibrary;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Draws frames of a {@link LineGraph} on its own thread. Frames are drawn into a back bitmap
+ * and swapped to the front once complete, so the UI thread only ever blits a finished frame.
+ * If frames are submitted faster than they can be drawn, only the latest one is drawn.
+ * Listeners submitted with a frame are handed back once a frame at least that new is on the
+ * front.
+ * <p/>
+ * Only the drawing moves off the UI thread; the frames are still worked out on it.
+ */
+final class LineGraphRenderThread {
+
+    private final View mView;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final LineGraphRenderer mRenderer = new LineGraphRenderer();
+    private final Object mLock = new Object();
+
+    // Reused for every frame. At most one is being drawn and one is the last one submitted,
+    // so there is always one to copy the next frame into.
+    private final LineGraphRenderer.Frame[] mFrames = {
+            new LineGraphRenderer.Frame(), new LineGraphRenderer.Frame(),
+            new LineGraphRenderer.Frame()
+    };
+
+    // Guarded by mLock
+    private LineGraphRenderer.Frame mPending;
+    private LineGraphRenderer.Frame mDrawing;
+    private Bitmap mFront, mBack;
+    private Canvas mFrontCanvas, mBackCanvas;
+    private boolean mBackReady;
+    // Listeners of the pending frame, the frame being drawn, the completed back bitmap and the
+    // front bitmap. A frame that is dropped for a newer one hands its listeners on to it.
+    private final ArrayList<OnDataShownListener> mPendingListeners =
+            new ArrayList<OnDataShownListener>();
+    private final ArrayList<OnDataShownListener> mDrawingListeners =
+            new ArrayList<OnDataShownListener>();
+    private final ArrayList<OnDataShownListener> mBackListeners =
+            new ArrayList<OnDataShownListener>();
+    private final ArrayList<OnDataShownListener> mShownListeners =
+            new ArrayList<OnDataShownListener>();
+
+    // Only touched on the UI thread
+    private LineGraphRenderer.Frame mSubmitted;
+
+    private final Runnable mRender = new Runnable() {
+        @Override
+        public void run() {
+            LineGraphRenderer.Frame frame;
+            Bitmap back;
+            Canvas canvas;
+            synchronized (mLock) {
+                frame = mPending;
+                mPending = null;
+                if (frame == null) {
+                    return;
+                }
+                if (frame.mWidth <= 0 || frame.mHeight <= 0) {
+                    // The listeners wait for the next frame
+                    return;
+                }
+                mDrawing = frame;
+                back = mBack;
+                canvas = mBackCanvas;
+                mBack = null;
+                if (mBackReady) {
+                    // The completed frame is drawn over before it reached the front
+                    moveAll(mBackListeners, mDrawingListeners);
+                }
+                mBackReady = false;
+                moveAll(mPendingListeners, mDrawingListeners);
+            }
+            if (back == null
+                    || back.getWidth() != frame.mWidth || back.getHeight() != frame.mHeight) {
+                back = Bitmap.createBitmap(frame.mWidth, frame.mHeight, Bitmap.Config.ARGB_8888);
+                canvas = new Canvas(back);
+            }
+            mRenderer.draw(canvas, frame);
+            synchronized (mLock) {
+                mDrawing = null;
+                mBack = back;
+                mBackCanvas = canvas;
+                mBackReady = true;
+                moveAll(mDrawingListeners, mBackListeners);
+            }
+            mView.postInvalidate();
+        }
+    };
+
+    LineGraphRenderThread(View view) {
+        mView = view;
+        mThread = new HandlerThread("LineGraphRenderThread", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Schedules a frame to be drawn, unless it looks the same as the last one and there are no
+     * listeners. The frame is copied, so the caller can keep changing it.
+     *
+     * @param listeners to be returned by {@link #takeShownListeners()} once the frame, or a
+     *                  newer one, is on the front, or null
+     */
+    void submit(LineGraphRenderer.Frame frame, OnDataShownListener[] listeners) {
+        if (listeners == null && frame.isSameAs(mSubmitted)) {
+            return;
+        }
+        LineGraphRenderer.Frame next = null;
+        synchronized (mLock) {
+            for (LineGraphRenderer.Frame candidate : mFrames) {
+                if (candidate != mSubmitted && candidate != mDrawing) {
+                    next = candidate;
+                    break;
+                }
+            }
+        }
+        // Neither drawn nor pending, so the render thread does not read it while it is copied
+        next.set(frame);
+        mSubmitted = next;
+        boolean scheduled;
+        synchronized (mLock) {
+            scheduled = mPending != null;
+            mPending = next;
+            if (listeners != null) {
+                mPendingListeners.addAll(Arrays.asList(listeners));
+            }
+        }
+        if (!scheduled) {
+            mHandler.post(mRender);
+        }
+    }
+
+    /**
+     * Swaps in the last completed frame, if there is a new one.
+     *
+     * @return the bitmap to blit, or null if no frame has been completed yet
+     */
+    Bitmap getFrontImage() {
+        synchronized (mLock) {
+            if (mBackReady) {
+                Bitmap front = mFront;
+                Canvas frontCanvas = mFrontCanvas;
+                mFront = mBack;
+                mFrontCanvas = mBackCanvas;
+                mBack = front;
+                mBackCanvas = frontCanvas;
+                mBackReady = false;
+                moveAll(mBackListeners, mShownListeners);
+            }
+            return mFront;
+        }
+    }
+
+    /**
+     * @return the listeners whose frames reached the front in {@link #getFrontImage()}, or
+     * null if there are none
+     */
+    OnDataShownListener[] takeShownListeners() {
+        synchronized (mLock) {
+            return takeAll(mShownListeners);
+        }
+    }
+
+    /**
+     * Stops the thread once the frame being drawn, if any, is done.
+     *
+     * @return the listeners whose frames have not been blitted yet, or null if there are none
+     */
+    OnDataShownListener[] quit() {
+        mHandler.removeCallbacks(mRender);
+        mThread.quit();
+        synchronized (mLock) {
+            moveAll(mBackListeners, mShownListeners);
+            moveAll(mDrawingListeners, mShownListeners);
+            moveAll(mPendingListeners, mShownListeners);
+            return takeAll(mShownListeners);
+        }
+    }
+
+    private static void moveAll(ArrayList<OnDataShownListener> from,
+                                ArrayList<OnDataShownListener> to) {
+        to.addAll(from);
+        from.clear();
+    }
+
+    private static OnDataShownListener[] takeAll(ArrayList<OnDataShownListener> listeners) {
+        if (listeners.isEmpty()) {
+            return null;
+        }
+        OnDataShownListener[] taken =
+                listeners.toArray(new OnDataShownListener[listeners.size()]);
+        listeners.clear();
+        return taken;
+    }
+}
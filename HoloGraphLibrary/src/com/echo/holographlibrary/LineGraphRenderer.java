@@ -0,0 +1,573 @@
+package com.echo.holographlibrary;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Shader;
+
+/**
+ * Draws a {@link Frame} of a {@link LineGraph}. A frame only holds pixel coordinates and
+ * colors, so it can be drawn away from the graph and its lines, e.g. on another thread.
+ * A renderer is not thread safe; every thread that draws needs its own.
+ */
+final class LineGraphRenderer {
+
+    private final Paint mPaint = new Paint();
+    private final Path mPath = new Path();
+    private final Path mLinePath = new Path();
+    // Counts the calls of draw(), so points transformed for a line can be told apart from those
+    // of an earlier call
+    private int mDrawCount;
+    private final Matrix mInverse = new Matrix();
+    private final float[] mBounds = new float[4];
+    private final float[] mReach = new float[2];
+    // The points of a line to draw, as found by findRange()
+    private int mFrom, mTo;
+    private final Matrix mFillMatrix = new Matrix();
+    private BitmapShader mFillShader;
+    private int mFillShaderColor;
+    private float mFillShaderStrokeWidth;
+    private int mFillShaderSpacing;
+
+    void draw(Canvas canvas, Frame frame) {
+        draw(canvas, frame, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Draws only the parts of the lines that may touch the pixel columns between left and
+     * right. The caller is expected to clip the canvas to those columns.
+     */
+    void draw(Canvas canvas, Frame frame, float left, float right) {
+        int width = frame.mWidth;
+        int height = frame.mHeight;
+        float bottomPadding = frame.mBottomPadding;
+        float sidePadding = frame.mSidePadding;
+
+        mDrawCount++;
+        canvas.drawColor(frame.mBackgroundColor);
+        mPaint.reset();
+
+        if (frame.mLineToFill >= 0 && frame.mLineToFill < frame.mLineCount) {
+            // A single path, shaded with a tile of the hatching, fills the area under the line
+            // however many points it has
+            int saveCount = canvas.save();
+            canvas.clipRect(sidePadding, 0, width - sidePadding, height - bottomPadding);
+            LineFrame line = frame.mLines[frame.mLineToFill];
+            findRange(frame, line, left, right);
+            mPaint.setShader(getFillShader(frame));
+            canvas.drawPath(getFillPath(frame, getPoints(frame, line), mFrom, mTo), mPaint);
+            canvas.restoreToCount(saveCount);
+        }
+
+        // Draw x-axis line
+        mPaint.reset();
+        mPaint.setColor(frame.mAxisColor);
+        mPaint.setStrokeWidth(frame.mAxisStrokeWidth);
+        mPaint.setAntiAlias(true);
+        canvas.drawLine(
+                sidePadding, height - bottomPadding,
+                width - sidePadding, height - bottomPadding, mPaint);
+        mPaint.reset();
+
+        // Draw lines
+        for (int l = 0; l < frame.mLineCount; l++) {
+            LineFrame line = frame.mLines[l];
+            findRange(frame, line, left, right);
+            if (frame.mTransform != null) {
+                drawTransformed(canvas, frame.mTransform, line);
+                continue;
+            }
+            float[] points = line.mPoints;
+            int from = mFrom;
+            int count = mTo - from;
+
+            mPaint.setColor(line.mColor);
+            mPaint.setStrokeWidth(line.mStrokeWidth);
+
+            // Every pair of points is a segment, so drawing once from the first and once from
+            // the second point covers the whole polyline
+            if (count > 1) {
+                canvas.drawLines(points, 2 * from, count / 2 * 4, mPaint);
+                canvas.drawLines(points, 2 * from + 2, (count - 1) / 2 * 4, mPaint);
+            }
+        }
+
+        // Draw points
+        mPaint.setStrokeCap(Paint.Cap.ROUND);
+        for (int l = 0; l < frame.mLineCount; l++) {
+            LineFrame line = frame.mLines[l];
+            if (line.mShowPoints) {
+                findRange(frame, line, left, right);
+                float[] points = getPoints(frame, line);
+                int from = mFrom;
+                int to = mTo;
+                int outerRadius = line.mPointRadius;
+                int innerRadius = outerRadius / 2;
+
+                // A round point as wide as the circle draws the same as the circle
+                mPaint.setStrokeWidth(2 * outerRadius);
+                if (line.mPointColors != null) {
+                    for (int i = from; i < to; i++) {
+                        mPaint.setColor(line.mPointColors[i]);
+                        canvas.drawPoint(points[2 * i], points[2 * i + 1], mPaint);
+                    }
+                } else {
+                    mPaint.setColor(LinePoint.DEFAULT_COLOR);
+                    canvas.drawPoints(points, 2 * from, 2 * (to - from), mPaint);
+                }
+                mPaint.setStrokeWidth(2 * innerRadius);
+                mPaint.setColor(Color.WHITE);
+                canvas.drawPoints(points, 2 * from, 2 * (to - from), mPaint);
+
+                // Draw selection
+                if (frame.mSelectionLine == l) {
+                    mPaint.setColor(frame.mSelectionColor);
+                    canvas.drawCircle(frame.mSelectionX, frame.mSelectionY,
+                            frame.mSelectionRadius, mPaint);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets mFrom and mTo to the points of a line that may touch the pixel columns between left
+     * and right once the frame is transformed. Only the columns of the graph are looked at, so
+     * when the lines are moved and stretched during a gesture only the points in view are
+     * transformed and drawn, not the margin laid out around them.
+     */
+    private void findRange(Frame frame, LineFrame line, float left, float right) {
+        if (frame.mTransform == null) {
+            mFrom = line.firstTouching(left);
+            mTo = line.lastTouching(right);
+            return;
+        }
+        frame.mTransform.invert(mInverse);
+        mBounds[0] = Math.max(left, 0);
+        mBounds[2] = Math.min(right, frame.mWidth);
+        mInverse.mapPoints(mBounds);
+        mReach[0] = line.getReach();
+        mInverse.mapVectors(mReach);
+        float reach = Math.abs(mReach[0]);
+        mFrom = line.firstTouching(Math.min(mBounds[0], mBounds[2]), reach);
+        mTo = Math.max(mFrom, line.lastTouching(Math.max(mBounds[0], mBounds[2]), reach));
+    }
+
+    /**
+     * Draws the points of a line in [mFrom, mTo) as a path, moved into place with the
+     * transformation of the frame. The points are transformed rather than the canvas so the
+     * stroke keeps its width. The transformation changes with every frame of a gesture, so the
+     * points in view are mapped and the path is built again each time; the cost grows with the
+     * points in view, not with the points of the line. The mapped points are kept for drawing
+     * the markers.
+     */
+    private void drawTransformed(Canvas canvas, Matrix transform, LineFrame line) {
+        float[] points = mapPoints(transform, line);
+        mLinePath.rewind();
+        if (mTo > mFrom) {
+            mLinePath.incReserve(mTo - mFrom);
+            mLinePath.moveTo(points[2 * mFrom], points[2 * mFrom + 1]);
+            for (int i = mFrom + 1; i < mTo; i++) {
+                mLinePath.lineTo(points[2 * i], points[2 * i + 1]);
+            }
+        }
+
+        mPaint.setColor(line.mColor);
+        mPaint.setStrokeWidth(line.mStrokeWidth);
+        mPaint.setStyle(Paint.Style.STROKE);
+        mPaint.setStrokeJoin(Paint.Join.BEVEL);
+        canvas.drawPath(mLinePath, mPaint);
+        mPaint.setStyle(Paint.Style.FILL);
+        mPaint.setStrokeJoin(Paint.Join.MITER);
+    }
+
+    /**
+     * @return the points of a line where they are to be drawn, which differs from where they
+     * were projected if the frame is transformed. Only the points in [mFrom, mTo) are valid
+     * then.
+     */
+    private float[] getPoints(Frame frame, LineFrame line) {
+        if (frame.mTransform == null) {
+            return line.mPoints;
+        }
+        return mapPoints(frame.mTransform, line);
+    }
+
+    /**
+     * Transforms the points of a line in [mFrom, mTo), keeping their indices. They are only
+     * transformed once per call of draw(), however often they are asked for.
+     */
+    private float[] mapPoints(Matrix transform, LineFrame line) {
+        if (line.mMappedBy == this && line.mMappedDrawCount == mDrawCount
+                && line.mMappedFrom == mFrom && line.mMappedTo == mTo) {
+            return line.mMappedPoints;
+        }
+        if (line.mMappedPoints == null || line.mMappedPoints.length < 2 * line.mCount) {
+            line.mMappedPoints = new float[2 * line.mCount];
+        }
+        transform.mapPoints(line.mMappedPoints, 2 * mFrom, line.mPoints, 2 * mFrom, mTo - mFrom);
+        line.mMappedBy = this;
+        line.mMappedDrawCount = mDrawCount;
+        line.mMappedFrom = mFrom;
+        line.mMappedTo = mTo;
+        return line.mMappedPoints;
+    }
+
+    /**
+     * @return a shader repeating a tile of the hatching, which is only drawn again when its
+     * colors or spacing change
+     */
+    private BitmapShader getFillShader(Frame frame) {
+        int spacing = Math.max(1, frame.mFillStrokeSpacing);
+        if (mFillShader == null || mFillShaderColor != frame.mFillColor
+                || mFillShaderStrokeWidth != frame.mFillStrokeWidth
+                || mFillShaderSpacing != spacing) {
+            Bitmap tile = Bitmap.createBitmap(spacing, spacing, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(tile);
+            Paint paint = new Paint();
+            paint.setColor(frame.mFillColor);
+            paint.setStrokeWidth(frame.mFillStrokeWidth);
+            // Hatch lines run down to the right. Drawing the neighbours of the one through the
+            // corner too makes the stroke wrap around the edges of the tile.
+            for (int offset = -spacing; offset <= spacing; offset += spacing) {
+                canvas.drawLine(-spacing, offset - spacing, 2 * spacing, offset + 2 * spacing,
+                        paint);
+            }
+            mFillShader = new BitmapShader(tile, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
+            mFillShaderColor = frame.mFillColor;
+            mFillShaderStrokeWidth = frame.mFillStrokeWidth;
+            mFillShaderSpacing = spacing;
+        }
+        // Keep the first hatch line 10 pixels right of the bottom left corner
+        mFillMatrix.setTranslate(0, frame.mHeight - frame.mBottomPadding - 10);
+        mFillShader.setLocalMatrix(mFillMatrix);
+        return mFillShader;
+    }
+
+    /**
+     * @return the area to fill for a line: everything under it, and the full height of the
+     * graph where it has no points
+     */
+    private Path getFillPath(Frame frame, float[] points, int from, int to) {
+        float bottom = frame.mHeight - frame.mBottomPadding;
+        float left = frame.mSidePadding;
+        float right = frame.mWidth - frame.mSidePadding;
+
+        mPath.reset();
+        mPath.moveTo(left, bottom);
+        mPath.lineTo(left, 0);
+        if (to > from) {
+            mPath.lineTo(points[2 * from], 0);
+            for (int i = from; i < to; i++) {
+                mPath.lineTo(points[2 * i], points[2 * i + 1]);
+            }
+            mPath.lineTo(points[2 * to - 2], 0);
+        }
+        mPath.lineTo(right, 0);
+        mPath.lineTo(right, bottom);
+        mPath.close();
+        return mPath;
+    }
+
+    /**
+     * Brings the render cache of a line up to date with the viewport and points the line frame
+     * at its projected points.
+     *
+     * @param decimation the decimation to use, already resolved from DECIMATION_DEFAULT
+     * @param columns    the number of horizontal pixels the line is drawn across
+     */
+    static void prepareLine(LineFrame lineFrame, Line line, int decimation, int columns,
+                            float minX, float maxX, float minY, float maxY,
+                            float left, float bottom, float width, float height) {
+        prepareLine(lineFrame, line, line.getRenderCache(), decimation, columns,
+                minX, maxX, minY, maxY, left, bottom, width, height);
+    }
+
+    /**
+     * Like {@link #prepareLine(LineFrame, Line, int, int, float, float, float, float, float,
+     * float, float, float)}, but with a cache other than the one of the line.
+     */
+    static void prepareLine(LineFrame lineFrame, Line line, LineRenderCache cache,
+                            int decimation, int columns,
+                            float minX, float maxX, float minY, float maxY,
+                            float left, float bottom, float width, float height) {
+        cache.update(line, decimation, columns, minX, maxX);
+        cache.project(line, minX, maxX, minY, maxY, left, bottom, width, height);
+        lineFrame.mPoints = cache.mPoints;
+        lineFrame.mCount = cache.mCount;
+        lineFrame.mPointColors = cache.mPointColors;
+        lineFrame.mVersion = cache.getProjection();
+        lineFrame.mColor = line.getColor();
+        lineFrame.mShowPoints = line.isShowingPoints();
+    }
+
+    /**
+     * Everything needed to draw a graph once.
+     */
+    static final class Frame {
+        int mWidth, mHeight;
+        float mSidePadding, mBottomPadding;
+        int mBackgroundColor;
+        int mAxisColor;
+        float mAxisStrokeWidth;
+        int mLineToFill = -1;
+        int mFillColor;
+        float mFillStrokeWidth;
+        int mFillStrokeSpacing;
+        LineFrame[] mLines = new LineFrame[0];
+        int mLineCount;
+        int mSelectionLine = -1;
+        float mSelectionX, mSelectionY, mSelectionRadius;
+        int mSelectionColor;
+        // Moves the projected points to where they are drawn, or null if they are drawn where
+        // they are
+        Matrix mTransform;
+
+        LineFrame obtainLine(int index) {
+            if (index >= mLines.length) {
+                LineFrame[] lines = new LineFrame[index + 1];
+                System.arraycopy(mLines, 0, lines, 0, mLines.length);
+                mLines = lines;
+            }
+            if (mLines[index] == null) {
+                mLines[index] = new LineFrame();
+            }
+            return mLines[index];
+        }
+
+        /**
+         * Makes this frame a copy of another one, reusing the arrays of this frame where they
+         * are large enough.
+         */
+        void set(Frame other) {
+            mWidth = other.mWidth;
+            mHeight = other.mHeight;
+            mSidePadding = other.mSidePadding;
+            mBottomPadding = other.mBottomPadding;
+            mBackgroundColor = other.mBackgroundColor;
+            mAxisColor = other.mAxisColor;
+            mAxisStrokeWidth = other.mAxisStrokeWidth;
+            mLineToFill = other.mLineToFill;
+            mFillColor = other.mFillColor;
+            mFillStrokeWidth = other.mFillStrokeWidth;
+            mFillStrokeSpacing = other.mFillStrokeSpacing;
+            for (int i = 0; i < other.mLineCount; i++) {
+                obtainLine(i).set(other.mLines[i]);
+            }
+            mLineCount = other.mLineCount;
+            mSelectionLine = other.mSelectionLine;
+            mSelectionX = other.mSelectionX;
+            mSelectionY = other.mSelectionY;
+            mSelectionRadius = other.mSelectionRadius;
+            mSelectionColor = other.mSelectionColor;
+            if (other.mTransform == null) {
+                mTransform = null;
+            } else {
+                if (mTransform == null) {
+                    mTransform = new Matrix();
+                }
+                mTransform.set(other.mTransform);
+            }
+        }
+
+        /**
+         * @return true if drawing the other frame gives the same picture as this one
+         */
+        boolean isSameAs(Frame other) {
+            if (other == null || !hasSameLayout(other)
+                    || mSelectionLine != other.mSelectionLine
+                    || mSelectionX != other.mSelectionX
+                    || mSelectionY != other.mSelectionY
+                    || mSelectionRadius != other.mSelectionRadius
+                    || mSelectionColor != other.mSelectionColor
+                    || (mTransform == null ? other.mTransform != null
+                    : !mTransform.equals(other.mTransform))) {
+                return false;
+            }
+            for (int i = 0; i < mLineCount; i++) {
+                if (!mLines[i].isSameAs(other.mLines[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the other frame has the same size, colors and line styles, whatever
+         * the points
+         */
+        boolean hasSameLayout(Frame other) {
+            if (mWidth != other.mWidth || mHeight != other.mHeight
+                    || mSidePadding != other.mSidePadding
+                    || mBottomPadding != other.mBottomPadding
+                    || mBackgroundColor != other.mBackgroundColor
+                    || mAxisColor != other.mAxisColor
+                    || mAxisStrokeWidth != other.mAxisStrokeWidth
+                    || mLineToFill != other.mLineToFill
+                    || mFillColor != other.mFillColor
+                    || mFillStrokeWidth != other.mFillStrokeWidth
+                    || mFillStrokeSpacing != other.mFillStrokeSpacing
+                    || mLineCount != other.mLineCount) {
+                return false;
+            }
+            for (int i = 0; i < mLineCount; i++) {
+                if (!mLines[i].hasSameStyle(other.mLines[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Copies everything {@link #hasSameLayout(Frame)} compares, but not the points.
+         */
+        void setLayout(Frame other) {
+            mWidth = other.mWidth;
+            mHeight = other.mHeight;
+            mSidePadding = other.mSidePadding;
+            mBottomPadding = other.mBottomPadding;
+            mBackgroundColor = other.mBackgroundColor;
+            mAxisColor = other.mAxisColor;
+            mAxisStrokeWidth = other.mAxisStrokeWidth;
+            mLineToFill = other.mLineToFill;
+            mFillColor = other.mFillColor;
+            mFillStrokeWidth = other.mFillStrokeWidth;
+            mFillStrokeSpacing = other.mFillStrokeSpacing;
+            for (int i = 0; i < other.mLineCount; i++) {
+                obtainLine(i).setStyle(other.mLines[i]);
+            }
+            mLineCount = other.mLineCount;
+            mSelectionLine = other.mSelectionLine;
+        }
+    }
+
+    /**
+     * A line of a {@link Frame}, in pixels.
+     */
+    static final class LineFrame {
+        // x/y pairs
+        float[] mPoints;
+        int mCount;
+        // Color of every point, or null if they all have the default color
+        int[] mPointColors;
+        // Identifies the coordinates and colors, changes whenever they do
+        int mVersion;
+        int mColor;
+        float mStrokeWidth;
+        boolean mShowPoints;
+        int mPointRadius;
+        // The points in view moved by the transformation of the frame, and the renderer, call
+        // of draw() and range they were mapped for
+        float[] mMappedPoints;
+        LineGraphRenderer mMappedBy;
+        int mMappedDrawCount;
+        int mMappedFrom, mMappedTo;
+
+        void set(LineFrame other) {
+            mCount = other.mCount;
+            if (mPoints == null || mPoints.length < 2 * mCount) {
+                mPoints = new float[2 * mCount];
+            }
+            System.arraycopy(other.mPoints, 0, mPoints, 0, 2 * mCount);
+            if (other.mPointColors == null) {
+                mPointColors = null;
+            } else {
+                if (mPointColors == null || mPointColors.length < mCount) {
+                    mPointColors = new int[mCount];
+                }
+                System.arraycopy(other.mPointColors, 0, mPointColors, 0, mCount);
+            }
+            mVersion = other.mVersion;
+            mColor = other.mColor;
+            mStrokeWidth = other.mStrokeWidth;
+            mShowPoints = other.mShowPoints;
+            mPointRadius = other.mPointRadius;
+        }
+
+        void setStyle(LineFrame other) {
+            mColor = other.mColor;
+            mStrokeWidth = other.mStrokeWidth;
+            mShowPoints = other.mShowPoints;
+            mPointRadius = other.mPointRadius;
+        }
+
+        boolean isSameAs(LineFrame other) {
+            return mVersion == other.mVersion
+                    && mCount == other.mCount
+                    && (mPointColors == null) == (other.mPointColors == null)
+                    && hasSameStyle(other);
+        }
+
+        boolean hasSameStyle(LineFrame other) {
+            return mColor == other.mColor
+                    && mStrokeWidth == other.mStrokeWidth
+                    && mShowPoints == other.mShowPoints
+                    && mPointRadius == other.mPointRadius;
+        }
+
+        /**
+         * @return how far from a point the line or its marker may reach
+         */
+        float getReach() {
+            return mShowPoints ? Math.max(mPointRadius, mStrokeWidth) : mStrokeWidth;
+        }
+
+        /**
+         * @return the first point to draw for everything right of the pixel column
+         */
+        int firstTouching(float left) {
+            return firstTouching(left, getReach());
+        }
+
+        /**
+         * @param reach how far from a point the line or its marker may reach, in the units of
+         *              the points
+         */
+        int firstTouching(float left, float reach) {
+            if (left == Float.NEGATIVE_INFINITY) {
+                return 0;
+            }
+            float x = left - reach;
+            int low = 0;
+            int high = mCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mPoints[2 * mid] < x) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            // The segment from the point before still crosses the column
+            return Math.max(0, low - 1);
+        }
+
+        /**
+         * @return one past the last point to draw for everything left of the pixel column
+         */
+        int lastTouching(float right) {
+            return lastTouching(right, getReach());
+        }
+
+        int lastTouching(float right, float reach) {
+            if (right == Float.POSITIVE_INFINITY) {
+                return mCount;
+            }
+            float x = right + reach;
+            int low = 0;
+            int high = mCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mPoints[2 * mid] <= x) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return Math.min(mCount, low + 1);
+        }
+    }
+}
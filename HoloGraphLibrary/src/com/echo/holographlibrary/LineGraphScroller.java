@@ -0,0 +1,201 @@
+package com.echo.holographlibrary;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+import java.util.List;
+
+/**
+ * Keeps the last picture of a {@link LineGraph} and, when the graph only moved right because
+ * points were appended, moves the picture left instead of drawing it again. Only the strip
+ * that came into view and the new segments are drawn then.
+ * <p/>
+ * Every frame, {@link #scroll} decides how to draw it and {@link #draw} draws it.
+ */
+final class LineGraphScroller {
+
+    // How much the width of the x range may change, in pixels, before the graph is redrawn
+    private static final float MAX_SPAN_DRIFT = 0.25f;
+
+    private final LineGraphRenderer mRenderer;
+    private final Paint mCopyPaint = new Paint();
+    private Bitmap mImage, mSpareImage;
+    private Canvas mCanvas, mSpareCanvas;
+
+    // What mImage shows
+    private final LineGraphRenderer.Frame mLayout = new LineGraphRenderer.Frame();
+    private boolean mHasImage;
+    private float mMinX, mMaxX, mMinY, mMaxY;
+    private Line[] mLines = new Line[0];
+    private int[] mEditCounts = new int[0];
+    private int[] mFrontEditCounts = new int[0];
+    private float[] mLastXs = new float[0];
+
+    // Decided by scroll() for the next draw()
+    private int mShift;
+    private float mScale;
+    private float mRedrawFromX;
+
+    LineGraphScroller(LineGraphRenderer renderer) {
+        mRenderer = renderer;
+        mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * Works out whether the next frame can be drawn by moving the last one. If so, the x range
+     * is nudged by less than a pixel so the picture moves by whole pixels.
+     *
+     * @return true if the x range was nudged, see {@link #getMinX()} and {@link #getMaxX()}
+     */
+    boolean scroll(List<Line> lines, float minX, float maxX, float minY, float maxY,
+                   float usableWidth) {
+        mShift = 0;
+        boolean scrolled = canScroll(lines, minX, maxX, minY, maxY, usableWidth);
+
+        int lineCount = lines.size();
+        if (mLines.length < lineCount) {
+            mLines = new Line[lineCount];
+            mEditCounts = new int[lineCount];
+            mFrontEditCounts = new int[lineCount];
+            mLastXs = new float[lineCount];
+        }
+        mRedrawFromX = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < lineCount; i++) {
+            Line line = lines.get(i);
+            if (scrolled && !Float.isNaN(mLastXs[i])) {
+                mRedrawFromX = Math.min(mRedrawFromX, mLastXs[i]);
+            }
+            mLines[i] = line;
+            mEditCounts[i] = line.getEditCount();
+            mFrontEditCounts[i] = line.getFrontEditCount();
+            mLastXs[i] = line.getSize() > 0 ? line.getX(line.getSize() - 1) : Float.NaN;
+        }
+        for (int i = lineCount; i < mLines.length; i++) {
+            mLines[i] = null;
+        }
+        if (!scrolled) {
+            mMinX = minX;
+            mMaxX = maxX;
+        }
+        mMinY = minY;
+        mMaxY = maxY;
+        return scrolled;
+    }
+
+    private boolean canScroll(List<Line> lines, float minX, float maxX, float minY, float maxY,
+                              float usableWidth) {
+        if (!mHasImage || minY != mMinY || maxY != mMaxY || usableWidth <= 0
+                || lines.size() != mLayout.mLineCount) {
+            return false;
+        }
+        // The range may widen or narrow slightly as points come and go, but the picture can
+        // only be moved if its scale stays put
+        float span = mMaxX - mMinX;
+        float scale = usableWidth / span;
+        if (Math.abs(maxX - minX - span) * scale > MAX_SPAN_DRIFT) {
+            return false;
+        }
+        int shift = Math.round((minX - mMinX) * scale);
+        if (shift <= 0 || shift >= usableWidth) {
+            return false;
+        }
+        float scrolledMinX = mMinX + shift / scale;
+        for (int i = 0; i < lines.size(); i++) {
+            Line line = lines.get(i);
+            if (line != mLines[i]) {
+                return false;
+            }
+            // A line that was empty has nothing to scroll
+            if (Float.isNaN(mLastXs[i]) && line.getSize() > 0) {
+                return false;
+            }
+            // Points may only have been appended, or removed from the start
+            int frontEdits = line.getFrontEditCount() - mFrontEditCounts[i];
+            if (line.getEditCount() - mEditCounts[i] != frontEdits) {
+                return false;
+            }
+            // and then only if they have scrolled out of sight
+            if (frontEdits > 0 && (line.getSize() == 0 || line.getX(0) > scrolledMinX)) {
+                return false;
+            }
+        }
+        mShift = shift;
+        mScale = scale;
+        mMinX = scrolledMinX;
+        mMaxX = scrolledMinX + span;
+        return true;
+    }
+
+    float getMinX() {
+        return mMinX;
+    }
+
+    float getMaxX() {
+        return mMaxX;
+    }
+
+    /**
+     * Draws a frame laid out after {@link #scroll}.
+     *
+     * @return the picture of the graph
+     */
+    Bitmap draw(LineGraphRenderer.Frame frame) {
+        int width = frame.mWidth;
+        int height = frame.mHeight;
+        if (mImage == null || mImage.getWidth() != width || mImage.getHeight() != height) {
+            mImage = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mCanvas = new Canvas(mImage);
+            mSpareImage = null;
+            mSpareCanvas = null;
+            mHasImage = false;
+        }
+
+        // The hatching of a filled line does not move with it
+        boolean filled = frame.mLineToFill >= 0 && frame.mLineToFill < frame.mLineCount;
+        if (mShift > 0 && mHasImage && !filled
+                && frame.mSelectionLine == -1 && mLayout.mSelectionLine == -1
+                && frame.hasSameLayout(mLayout)) {
+            if (mSpareImage == null) {
+                mSpareImage = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                mSpareCanvas = new Canvas(mSpareImage);
+            }
+            mSpareCanvas.drawBitmap(mImage, -mShift, 0, mCopyPaint);
+
+            // Redraw from where the lines ended, and whatever came into view right of that
+            float sidePadding = frame.mSidePadding;
+            float left = Math.min(width - sidePadding - mShift,
+                    sidePadding + (mRedrawFromX - mMinX) * mScale);
+            redraw(frame, left, width);
+
+            // Points removed from the start may have been drawn over the left padding
+            float reach = 0;
+            for (int i = 0; i < frame.mLineCount; i++) {
+                reach = Math.max(reach, frame.mLines[i].getReach());
+            }
+            redraw(frame, 0, sidePadding + reach);
+
+            Bitmap image = mImage;
+            Canvas canvas = mCanvas;
+            mImage = mSpareImage;
+            mCanvas = mSpareCanvas;
+            mSpareImage = image;
+            mSpareCanvas = canvas;
+        } else {
+            mRenderer.draw(mCanvas, frame);
+        }
+        mLayout.setLayout(frame);
+        mHasImage = true;
+        mShift = 0;
+        return mImage;
+    }
+
+    private void redraw(LineGraphRenderer.Frame frame, float left, float right) {
+        int saveCount = mSpareCanvas.save();
+        mSpareCanvas.clipRect(left, 0, right, frame.mHeight);
+        mRenderer.draw(mSpareCanvas, frame, left, right);
+        mSpareCanvas.restoreToCount(saveCount);
+    }
+}
@@ -0,0 +1,442 @@
+package com.echo.holographlibrary;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import java.util.ArrayList;
+
+/**
+ * A {@link LineGraph} for live data, drawn straight onto a surface by its own thread.
+ * <p/>
+ * While the surface exists, a render thread lays out and draws the graph up to
+ * {@link #getTargetFps()} times a second, from the same {@link Line}s and with the same
+ * projection as LineGraph, so the UI thread does none of the work of a frame. Frames that look
+ * the same as the last one are skipped unless {@link #setSkippingUnchangedFrames(boolean)} is
+ * turned off, and frames are dropped while the render thread is still busy with an older one.
+ * <p/>
+ * Lines can be added and removed from any thread. Once added, a line is read by the render
+ * thread, so its points must only be changed with {@link Line#postPoint} and
+ * {@link Line#postPoints}, or in a {@link Runnable} given to {@link #queueEvent(Runnable)}.
+ */
+public class LineGraphSurfaceView extends SurfaceView implements SurfaceHolder.Callback {
+
+    private static final int DEFAULT_PADDING = 10;
+    private static final int DEFAULT_TARGET_FPS = 60;
+    private final int mDipPadding;
+    private final int mFillColor;
+    private final int mAxisColor;
+    private final float mStrokeWidth;
+    private final int mStrokeSpacing;
+    private final int mBackgroundColor;
+    // Replaced rather than changed, so lines can be added from other threads while a frame
+    // is prepared. Guarded by mLinesLock for writing.
+    private volatile ArrayList<Line> mLines = new ArrayList<Line>();
+    private final Object mLinesLock = new Object();
+    // Set on the UI thread and read by the render thread
+    private volatile boolean mUseDips;
+    private volatile int mLineToFill = -1;
+    private volatile int mDecimation = LineGraph.DECIMATION_NONE;
+    private volatile int mTargetFps = DEFAULT_TARGET_FPS;
+    private volatile boolean mSkipUnchangedFrames = true;
+    private volatile int mDroppedFrames;
+
+    // Guarded by mLock
+    private final Object mLock = new Object();
+    private final ArrayList<Runnable> mEvents = new ArrayList<Runnable>();
+    private int mSurfaceWidth, mSurfaceHeight;
+    private boolean mSurfaceChanged;
+
+    // Guarded by the surface holder. The render thread only posts the next frame while the
+    // surface exists, so it never posts to a thread that has quit.
+    private boolean mHasSurface;
+    private Handler mRenderHandler;
+
+    // Only touched on the UI thread
+    private HandlerThread mRenderThread;
+    private boolean mRunning;
+
+    // Only touched on the render thread. Frames are prepared into the two frames in turn, so the
+    // last drawn one is still there to compare with.
+    private boolean mUserSetRangeX, mUserSetRangeY;
+    private float mMinX, mMaxX, mMinY, mMaxY;
+    private final ArrayList<Runnable> mRunningEvents = new ArrayList<Runnable>();
+    private final LineGraphRenderer.Frame[] mFrames = {
+            new LineGraphRenderer.Frame(), new LineGraphRenderer.Frame()
+    };
+    private int mFrameIndex;
+    private boolean mHasLastFrame;
+    private long mNextFrameTime;
+    private final LineGraphRenderer mRenderer = new LineGraphRenderer();
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+            long period = Math.max(1, 1000 / mTargetFps);
+            if (now - mNextFrameTime >= period) {
+                // The last frame took so long that these were never started
+                mDroppedFrames += (int) ((now - mNextFrameTime) / period);
+            }
+            drawFrame();
+            // Keep to the frame rate on average, but never try to catch up on missed frames
+            mNextFrameTime = Math.max(mNextFrameTime + period, now);
+            synchronized (getHolder()) {
+                if (mHasSurface) {
+                    mRenderHandler.postAtTime(this, mNextFrameTime);
+                }
+            }
+        }
+    };
+
+    public LineGraphSurfaceView(Context context) {
+        this(context, null);
+    }
+
+    public LineGraphSurfaceView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public LineGraphSurfaceView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        mDipPadding = getPixelForDip(DEFAULT_PADDING);
+
+        TypedArray a = context.getTheme().obtainStyledAttributes(
+                attrs, R.styleable.LineGraph, 0, 0);
+        mFillColor = a.getColor(R.styleable.LineGraph_lineStrokeColor, Color.BLACK);
+        mAxisColor = a.getColor(R.styleable.LineGraph_lineAxisColor, Color.LTGRAY);
+        mBackgroundColor = a.getColor(R.styleable.LineGraph_lineBackground, Color.WHITE);
+        mStrokeWidth = a.getDimension(R.styleable.LineGraph_lineStrokeWidth, 2);
+        mStrokeSpacing = a.getDimensionPixelSize(R.styleable.LineGraph_lineStrokeSpacing, 10);
+        mUseDips = a.getBoolean(R.styleable.LineGraph_lineUseDip, false);
+        a.recycle();
+
+        getHolder().addCallback(this);
+    }
+
+    public boolean isUsingDips() {
+        return mUseDips;
+    }
+
+    public void setUsingDips(boolean treatSizesAsDips) {
+        mUseDips = treatSizesAsDips;
+    }
+
+    public void addLine(Line line) {
+        synchronized (mLinesLock) {
+            ArrayList<Line> lines = new ArrayList<Line>(mLines.size() + 1);
+            lines.addAll(mLines);
+            lines.add(line);
+            mLines = lines;
+        }
+    }
+
+    public void removeAllLines() {
+        synchronized (mLinesLock) {
+            mLines = new ArrayList<Line>();
+        }
+    }
+
+    public ArrayList<Line> getLines() {
+        return mLines;
+    }
+
+    /**
+     * Shows the given lines. The list must not be changed afterwards.
+     */
+    public void setLines(ArrayList<Line> lines) {
+        synchronized (mLinesLock) {
+            mLines = lines;
+        }
+    }
+
+    public Line getLine(int index) {
+        return mLines.get(index);
+    }
+
+    public int getSize() {
+        return mLines.size();
+    }
+
+    public int getLineToFill() {
+        return mLineToFill;
+    }
+
+    public void setLineToFill(int indexOfLine) {
+        mLineToFill = indexOfLine;
+    }
+
+    public int getDecimation() {
+        return mDecimation;
+    }
+
+    /**
+     * @see LineGraph#setDecimation(int)
+     */
+    public void setDecimation(int decimation) {
+        mDecimation = decimation;
+    }
+
+    /**
+     * Fixes the x range. Until this is called, the range follows the points of the lines.
+     */
+    public void setRangeX(final float min, final float max) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mUserSetRangeX = true;
+                mMinX = min;
+                mMaxX = max;
+            }
+        });
+    }
+
+    /**
+     * Fixes the y range. Until this is called, the range follows the points of the lines.
+     */
+    public void setRangeY(final float min, final float max) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mUserSetRangeY = true;
+                mMinY = min;
+                mMaxY = max;
+            }
+        });
+    }
+
+    /**
+     * Lets both ranges follow the points of the lines again.
+     */
+    public void resetLimits() {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mUserSetRangeX = false;
+                mUserSetRangeY = false;
+            }
+        });
+    }
+
+    /**
+     * Runs the given code on the render thread before the next frame is laid out, which is
+     * where the points of the lines can be changed other than by posting them. Can be called
+     * from any thread. While there is no surface, the code waits for the first frame.
+     */
+    public void queueEvent(Runnable event) {
+        synchronized (mLock) {
+            mEvents.add(event);
+        }
+    }
+
+    public int getTargetFps() {
+        return mTargetFps;
+    }
+
+    /**
+     * Sets how many frames a second are drawn at most.
+     */
+    public void setTargetFps(int targetFps) {
+        if (targetFps <= 0) {
+            throw new IllegalArgumentException("targetFps must be positive");
+        }
+        mTargetFps = targetFps;
+    }
+
+    public boolean isSkippingUnchangedFrames() {
+        return mSkipUnchangedFrames;
+    }
+
+    /**
+     * Sets whether frames that look the same as the last drawn one are skipped, which is the
+     * default. Turn this off to draw every frame, e.g. to measure drawing.
+     */
+    public void setSkippingUnchangedFrames(boolean skipUnchangedFrames) {
+        mSkipUnchangedFrames = skipUnchangedFrames;
+    }
+
+    /**
+     * @return how many frames were dropped because the render thread was still busy
+     */
+    public int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        mRenderThread = new HandlerThread("LineGraphSurfaceView", Process.THREAD_PRIORITY_DISPLAY);
+        mRenderThread.start();
+        synchronized (holder) {
+            mHasSurface = true;
+            mRenderHandler = new Handler(mRenderThread.getLooper());
+        }
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        synchronized (mLock) {
+            mSurfaceWidth = width;
+            mSurfaceHeight = height;
+            // The new surface has nothing on it yet
+            mSurfaceChanged = true;
+        }
+        if (!mRunning) {
+            mRunning = true;
+            // Handed to the render thread with the first tick
+            mNextFrameTime = SystemClock.uptimeMillis();
+            synchronized (holder) {
+                mRenderHandler.post(mTick);
+            }
+        }
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        mRunning = false;
+        // Holding the surface lock waits for the frame being drawn, if any
+        synchronized (holder) {
+            mHasSurface = false;
+            mRenderThread.quit();
+            mRenderHandler = null;
+        }
+        mRenderThread = null;
+    }
+
+    /**
+     * Lays out and draws a frame on the render thread, unless it looks the same as the last
+     * one.
+     */
+    private void drawFrame() {
+        int width, height;
+        boolean surfaceChanged;
+        synchronized (mLock) {
+            mRunningEvents.addAll(mEvents);
+            mEvents.clear();
+            width = mSurfaceWidth;
+            height = mSurfaceHeight;
+            surfaceChanged = mSurfaceChanged;
+            mSurfaceChanged = false;
+        }
+        for (int i = 0; i < mRunningEvents.size(); i++) {
+            mRunningEvents.get(i).run();
+        }
+        mRunningEvents.clear();
+        if (surfaceChanged) {
+            mHasLastFrame = false;
+        }
+
+        LineGraphRenderer.Frame frame = mFrames[mFrameIndex];
+        prepareFrame(frame, width, height);
+        if (mSkipUnchangedFrames && mHasLastFrame
+                && frame.isSameAs(mFrames[1 - mFrameIndex])) {
+            return;
+        }
+        // Holding the surface lock keeps surfaceDestroyed() from returning mid-frame
+        SurfaceHolder holder = getHolder();
+        synchronized (holder) {
+            if (!mHasSurface) {
+                return;
+            }
+            Canvas canvas = holder.lockCanvas();
+            if (canvas == null) {
+                return;
+            }
+            try {
+                mRenderer.draw(canvas, frame);
+            } finally {
+                holder.unlockCanvasAndPost(canvas);
+            }
+        }
+        mFrameIndex = 1 - mFrameIndex;
+        mHasLastFrame = true;
+    }
+
+    /**
+     * Lays out the lines and fills the frame with everything needed to draw them.
+     */
+    private void prepareFrame(LineGraphRenderer.Frame frame, int width, int height) {
+        float bottomPadding = 10, topPadding = 10;
+        float sidePadding = 10;
+        if (mUseDips) {
+            bottomPadding = mDipPadding;
+            topPadding = mDipPadding;
+            sidePadding = mDipPadding;
+        }
+        float usableHeight = height - bottomPadding - topPadding;
+        float usableWidth = width - 2 * sidePadding;
+        ArrayList<Line> lines = mLines;
+        // Points posted with Line.postPoint() from other threads
+        for (int i = 0; i < lines.size(); i++) {
+            lines.get(i).addPostedPoints();
+        }
+        updateLimits(lines);
+        int columns = Math.max(3, (int) usableWidth);
+
+        frame.mWidth = width;
+        frame.mHeight = height;
+        frame.mSidePadding = sidePadding;
+        frame.mBottomPadding = bottomPadding;
+        frame.mBackgroundColor = mBackgroundColor;
+        frame.mAxisColor = mAxisColor;
+        frame.mAxisStrokeWidth = 2 * getResources().getDisplayMetrics().density;
+        frame.mLineToFill = mLineToFill;
+        frame.mFillColor = mFillColor;
+        frame.mFillStrokeWidth = mStrokeWidth;
+        frame.mFillStrokeSpacing = mStrokeSpacing;
+        frame.mSelectionLine = -1;
+
+        float bottom = height - bottomPadding;
+        frame.mLineCount = lines.size();
+        for (int i = 0; i < lines.size(); i++) {
+            Line line = lines.get(i);
+            int decimation = line.getDecimation();
+            if (decimation == LineGraph.DECIMATION_DEFAULT) {
+                decimation = mDecimation;
+            }
+            LineGraphRenderer.LineFrame lineFrame = frame.obtainLine(i);
+            LineGraphRenderer.prepareLine(lineFrame, line, decimation, columns,
+                    mMinX, mMaxX, mMinY, mMaxY, sidePadding, bottom, usableWidth, usableHeight);
+            if (line.isUsingDips()) {
+                lineFrame.mStrokeWidth = getPixelForDip(line.getStrokeWidth());
+                lineFrame.mPointRadius = getPixelForDip(line.getStrokeWidth() + 4);
+            } else {
+                lineFrame.mStrokeWidth = line.getStrokeWidth();
+                lineFrame.mPointRadius = line.getStrokeWidth() + 4;
+            }
+        }
+    }
+
+    private void updateLimits(ArrayList<Line> lines) {
+        boolean first = true;
+        for (Line line : lines) {
+            if (line.getSize() == 0) {
+                continue;
+            }
+            if (!mUserSetRangeX) {
+                mMinX = first || line.getMinX() < mMinX ? line.getMinX() : mMinX;
+                mMaxX = first || line.getMaxX() > mMaxX ? line.getMaxX() : mMaxX;
+            }
+            if (!mUserSetRangeY) {
+                mMinY = first || line.getMinY() < mMinY ? line.getMinY() : mMinY;
+                mMaxY = first || line.getMaxY() > mMaxY ? line.getMaxY() : mMaxY;
+            }
+            first = false;
+        }
+    }
+
+    private int getPixelForDip(int dipValue) {
+        return (int) TypedValue.applyDimension(
+                TypedValue.COMPLEX_UNIT_DIP,
+                dipValue,
+                getResources().getDisplayMetrics());
+    }
+}
@@ -28,12 +28,24 @@ import android.graphics.Region;
 
 public class LinePoint {
 
-    private final Path mPath = new Path();
-    private final Region mRegion = new Region();
+    static final int DEFAULT_COLOR = 0xFF000000;
+    static final int NO_COLOR = -1;
+
+    // Only created for callers of the deprecated getters
+    private Path mPath;
+    private Region mRegion;
+    // Set while this point is a view onto a point of a line. The values below then hold the
+    // values the point had when it was last looked up, and are kept if it is removed.
+    private Line mLine;
+    private int mGeneration;
+    private int mId;
+    private int mIndex;
+    // Set once the point this was a view of has been removed
+    private boolean mDetached;
     private float mX;
     private float mY;
-    private int mColor = 0xFF000000;
-    private int mSelectedColor = -1;
+    private int mColor = DEFAULT_COLOR;
+    private int mSelectedColor = NO_COLOR;
 
     public LinePoint() {
         this(0, 0);
@@ -44,64 +56,164 @@ public class LinePoint {
     }
 
     public LinePoint(float x, float y) {
+        mLine = null;
+        mIndex = -1;
         mX = x;
         mY = y;
     }
 
+    LinePoint(Line line, int index) {
+        mLine = line;
+        mGeneration = line.getViewGeneration();
+        mId = line.getViewId(index);
+        mIndex = index;
+        load();
+    }
+
+    /**
+     * @return true if this is a view of a point the line still holds
+     */
+    boolean isViewOf(Line line) {
+        return mLine == line && find();
+    }
+
+    /**
+     * @return true if this is or was a view of a point of a line
+     */
+    boolean isView() {
+        return mLine != null || mDetached;
+    }
+
+    /**
+     * @return the index of the point this is a view of, as of the last {@link #isViewOf}
+     */
+    int getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Looks up the point this is a view of, and detaches from it if it was removed.
+     *
+     * @return true if the point is still in the line
+     */
+    private boolean find() {
+        if (mLine == null) {
+            return false;
+        }
+        int index = mLine.findView(mGeneration, mId, mIndex, mX);
+        if (index < 0) {
+            mLine = null;
+            mDetached = true;
+            return false;
+        }
+        mIndex = index;
+        load();
+        return true;
+    }
+
+    private void load() {
+        mX = mLine.getX(mIndex);
+        mY = mLine.getY(mIndex);
+        mColor = mLine.getPointColor(mIndex);
+        mSelectedColor = mLine.getRawPointSelectedColor(mIndex);
+    }
+
     public float getX() {
+        find();
         return mX;
     }
 
     public void setX(float x) {
+        if (find()) {
+            mLine.setX(mIndex, x);
+        }
         mX = x;
     }
 
     public float getY() {
+        find();
         return mY;
     }
 
     public void setY(float y) {
+        if (find()) {
+            mLine.setY(mIndex, y);
+        }
         mY = y;
     }
 
     public void setX(double x) {
-        mX = (float) x;
+        setX((float) x);
     }
 
     public void setY(double y) {
-        mY = (float) y;
+        setY((float) y);
     }
 
+    /**
+     * @deprecated LineGraph hit-tests points from their coordinates and no longer fills in this
+     * region.
+     */
+    @Deprecated
     public Region getRegion() {
+        if (mRegion == null) {
+            mRegion = new Region();
+        }
         return mRegion;
     }
 
+    /**
+     * @deprecated LineGraph hit-tests points from their coordinates and no longer fills in this
+     * path.
+     */
+    @Deprecated
     public Path getPath() {
+        if (mPath == null) {
+            mPath = new Path();
+        }
         return mPath;
     }
 
     @Override
     public String toString() {
-        return "x= " + mX + ", y= " + mY;
+        return "x= " + getX() + ", y= " + getY();
     }
 
     public int getColor() {
+        find();
         return mColor;
     }
 
     public void setColor(int color) {
+        if (find()) {
+            mLine.setPointColor(mIndex, color);
+        }
         mColor = color;
     }
 
     public int getSelectedColor() {
-        if (-1 == mSelectedColor) {
-            mSelectedColor = Utils.darkenColor(mColor);
-            mSelectedColor &= 0x80FFFFFF;
+        if (find()) {
+            return mLine.getPointSelectedColor(mIndex);
+        }
+        if (NO_COLOR == mSelectedColor) {
+            mSelectedColor = deriveSelectedColor(mColor);
         }
         return mSelectedColor;
     }
 
     public void setSelectedColor(int selectedColor) {
+        if (find()) {
+            mLine.setPointSelectedColor(mIndex, selectedColor);
+        }
         mSelectedColor = selectedColor;
     }
+
+    int getRawSelectedColor() {
+        find();
+        return mSelectedColor;
+    }
+
+    static int deriveSelectedColor(int color) {
+        return Utils.darkenColor(color) & 0x80FFFFFF;
+    }
 }
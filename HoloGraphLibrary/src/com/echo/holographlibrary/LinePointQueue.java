@@ -0,0 +1,138 @@
+package com.echo.holographlibrary;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Points posted to a {@link Line} from other threads, waiting to be added on the thread that
+ * draws it. Producers append to a chain of fixed-size chunks and publish each point through a
+ * volatile count, so the drawing thread never takes a lock or waits for a producer. Producers
+ * only wait for each other.
+ */
+final class LinePointQueue {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    private static final class Chunk {
+        final float[] mXs = new float[CHUNK_SIZE];
+        final float[] mYs = new float[CHUNK_SIZE];
+        // Points in the chunk that producers have finished writing
+        volatile int mCount;
+        volatile Chunk mNext;
+    }
+
+    // Written by producers only, under the lock of the queue
+    private Chunk mTail;
+    // Read by the consumer only. Starts as the same chunk as mTail.
+    private Chunk mHead;
+    private int mRead;
+    private float[] mDrainXs, mDrainYs;
+
+    LinePointQueue() {
+        mHead = new Chunk();
+        mTail = mHead;
+    }
+
+    synchronized void add(float x, float y) {
+        Chunk tail = obtainTail();
+        int count = tail.mCount;
+        tail.mXs[count] = x;
+        tail.mYs[count] = y;
+        tail.mCount = count + 1;
+    }
+
+    synchronized void add(float[] xs, float[] ys, int count) {
+        for (int from = 0; from < count; ) {
+            Chunk tail = obtainTail();
+            int start = tail.mCount;
+            int length = Math.min(CHUNK_SIZE - start, count - from);
+            System.arraycopy(xs, from, tail.mXs, start, length);
+            System.arraycopy(ys, from, tail.mYs, start, length);
+            tail.mCount = start + length;
+            from += length;
+        }
+    }
+
+    /**
+     * Adds the remaining x/y pairs of the buffer and moves it past them.
+     */
+    synchronized void add(FloatBuffer interleavedXY) {
+        while (interleavedXY.remaining() >= 2) {
+            Chunk tail = obtainTail();
+            int count = tail.mCount;
+            int end = Math.min(CHUNK_SIZE, count + interleavedXY.remaining() / 2);
+            for (int i = count; i < end; i++) {
+                tail.mXs[i] = interleavedXY.get();
+                tail.mYs[i] = interleavedXY.get();
+            }
+            tail.mCount = end;
+        }
+    }
+
+    private Chunk obtainTail() {
+        Chunk tail = mTail;
+        if (tail.mCount == CHUNK_SIZE) {
+            Chunk next = new Chunk();
+            tail.mNext = next;
+            mTail = next;
+            tail = next;
+        }
+        return tail;
+    }
+
+    /**
+     * @return true if no points are waiting, may only be called by the consumer
+     */
+    boolean isEmpty() {
+        return mRead == mHead.mCount && (mRead < CHUNK_SIZE || mHead.mNext == null);
+    }
+
+    /**
+     * Drops the points posted so far. May only be called by the consumer.
+     */
+    void clear() {
+        while (true) {
+            Chunk head = mHead;
+            mRead = head.mCount;
+            Chunk next = head.mNext;
+            if (mRead < CHUNK_SIZE || next == null) {
+                return;
+            }
+            mHead = next;
+            mRead = 0;
+        }
+    }
+
+    /**
+     * Adds the points posted so far to the line, a chunk at a time. May only be called by the
+     * consumer.
+     *
+     * @return true if any points were added
+     */
+    boolean drainTo(Line line) {
+        boolean drained = false;
+        while (true) {
+            Chunk head = mHead;
+            int count = head.mCount;
+            if (mRead == count) {
+                Chunk next = head.mNext;
+                if (count < CHUNK_SIZE || next == null) {
+                    return drained;
+                }
+                mHead = next;
+                mRead = 0;
+                continue;
+            }
+            if (mDrainXs == null) {
+                mDrainXs = new float[CHUNK_SIZE];
+                mDrainYs = new float[CHUNK_SIZE];
+            }
+            // Producers may be writing past count, so only the published points are copied
+            int length = count - mRead;
+            System.arraycopy(head.mXs, mRead, mDrainXs, 0, length);
+            System.arraycopy(head.mYs, mRead, mDrainYs, 0, length);
+            mRead = count;
+            line.addPoints(mDrainXs, mDrainYs, length);
+            drained = true;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.echo.holographlibrary;
+
+/**
+ * Pre-aggregated levels of detail of a {@link Line}, so that a line holding far more points
+ * than there are pixels can be reduced without looking at every point.
+ * <p/>
+ * Level i splits the points into buckets of 4 &lt;&lt; i points and keeps the lowest and the
+ * highest point of every bucket; its first and last point follow from its position. Points
+ * are numbered from the first point added since the pyramid was built, so removing points from
+ * the start of the line leaves the buckets where they are. Appending and removing from the
+ * start update the pyramid as they go, any other change has it rebuilt when it is next used.
+ */
+final class LinePyramid {
+
+    private static final int MAX_LEVELS = 28;
+    // Rebuild before the point numbers can overflow
+    private static final int MAX_REMOVED = 1 << 30;
+
+    private final Line mLine;
+    private boolean mValid;
+    // Points removed from the start since the pyramid was built. Adding it to an index into
+    // the line gives the number of the point.
+    private int mRemoved;
+    private int mLevels;
+    // Per level: the numbers of the lowest and highest point of each bucket, the bucket the
+    // arrays start with, where in the arrays it is, and how many buckets there are
+    private final int[][] mMins = new int[MAX_LEVELS][];
+    private final int[][] mMaxs = new int[MAX_LEVELS][];
+    private final int[] mBase = new int[MAX_LEVELS];
+    private final int[] mStart = new int[MAX_LEVELS];
+    private final int[] mCount = new int[MAX_LEVELS];
+
+    // State of m4() while it runs
+    private float mMinX, mMaxX;
+    private int mColumns;
+    private int[] mOut;
+    private int mOutCount;
+    private int mColumn;
+    private int mFirst, mMin, mMax, mLast;
+
+    LinePyramid(Line line) {
+        mLine = line;
+    }
+
+    /**
+     * Marks the pyramid as out of date after the points changed in a way it cannot follow.
+     */
+    void invalidate() {
+        mValid = false;
+    }
+
+    /**
+     * Builds the pyramid now if it is out of date, rather than when it is next used.
+     */
+    void update() {
+        if (!mValid) {
+            build();
+        }
+    }
+
+    /**
+     * Adds the point at the given index, which must be the last one of the line.
+     */
+    void append(int index) {
+        if (!mValid) {
+            return;
+        }
+        int number = mRemoved + index;
+        for (int level = 0; level < mLevels; level++) {
+            int bucket = number >> (level + 2);
+            if (bucket == mBase[level] + mCount[level]) {
+                push(level, number, number);
+            } else {
+                int position = mStart[level] + bucket - mBase[level];
+                mMins[level][position] = lower(mMins[level][position], number);
+                mMaxs[level][position] = higher(mMaxs[level][position], number);
+            }
+        }
+        int size = mLine.getSize();
+        while (mLevels < MAX_LEVELS && (4 << mLevels) <= size) {
+            addLevel(mLevels++);
+        }
+    }
+
+    /**
+     * Follows the removal of the first count points of the line.
+     */
+    void removeFirst(int count) {
+        if (!mValid) {
+            return;
+        }
+        mRemoved += count;
+        if (mLine.getSize() == 0 || mRemoved > MAX_REMOVED) {
+            mValid = false;
+            return;
+        }
+        for (int level = 0; level < mLevels; level++) {
+            int dropped = (mRemoved >> (level + 2)) - mBase[level];
+            if (dropped > 0) {
+                mBase[level] += dropped;
+                mStart[level] += dropped;
+                mCount[level] -= dropped;
+            }
+        }
+    }
+
+    /**
+     * M4 aggregation of the points in [from, to), like {@link Decimator#m4}, but over the
+     * coarsest level that still has a few buckets per pixel column. Buckets that straddle a
+     * column or the ends of the range are split into the buckets of the level below.
+     *
+     * @param out receives the indices of the kept points, must hold 4 * columns entries
+     * @return the number of indices written to out
+     */
+    int m4(int from, int to, float minX, float maxX, int columns, int[] out) {
+        if (!mValid) {
+            build();
+        }
+        mMinX = minX;
+        mMaxX = maxX;
+        mColumns = columns;
+        mOut = out;
+        mOutCount = 0;
+        mColumn = -1;
+
+        int perColumn = (to - from) / columns;
+        int level = -1;
+        while (level + 1 < mLevels && (4 << (level + 1)) <= perColumn) {
+            level++;
+        }
+        if (level < 0) {
+            for (int i = from; i < to; i++) {
+                add(i, i, i, i);
+            }
+        } else {
+            int start = mRemoved + from;
+            int end = mRemoved + to;
+            int shift = level + 2;
+            for (int bucket = start >> shift; bucket <= (end - 1) >> shift; bucket++) {
+                addBucket(level, bucket, start, end);
+            }
+        }
+        flush();
+        mOut = null;
+        return mOutCount;
+    }
+
+    private void addBucket(int level, int bucket, int start, int end) {
+        int shift = level + 2;
+        int first = bucket << shift;
+        int last = first + (1 << shift) - 1;
+        if (last < start || first >= end) {
+            return;
+        }
+        if (first >= start && last < end) {
+            int firstIndex = first - mRemoved;
+            int lastIndex = last - mRemoved;
+            if (column(firstIndex) == column(lastIndex)) {
+                int position = mStart[level] + bucket - mBase[level];
+                add(firstIndex, mMins[level][position] - mRemoved,
+                        mMaxs[level][position] - mRemoved, lastIndex);
+                return;
+            }
+        }
+        if (level == 0) {
+            for (int number = Math.max(first, start); number <= Math.min(last, end - 1);
+                 number++) {
+                int index = number - mRemoved;
+                add(index, index, index, index);
+            }
+        } else {
+            addBucket(level - 1, 2 * bucket, start, end);
+            addBucket(level - 1, 2 * bucket + 1, start, end);
+        }
+    }
+
+    /**
+     * Adds points, given by index, that all fall into the same pixel column.
+     */
+    private void add(int first, int min, int max, int last) {
+        int column = column(first);
+        if (column != mColumn) {
+            flush();
+            mColumn = column;
+            mFirst = first;
+            mMin = min;
+            mMax = max;
+        } else {
+            if (mLine.getY(min) < mLine.getY(mMin)) {
+                mMin = min;
+            }
+            if (mLine.getY(max) > mLine.getY(mMax)) {
+                mMax = max;
+            }
+        }
+        mLast = last;
+    }
+
+    private void flush() {
+        if (mColumn != -1) {
+            mOutCount = Decimator.emit(mOut, mOutCount, mFirst, mMin, mMax, mLast);
+        }
+    }
+
+    private int column(int index) {
+        return Decimator.column(mLine.getX(index), mMinX, mMaxX, mColumns);
+    }
+
+    private void build() {
+        mRemoved = 0;
+        mLevels = 0;
+        int size = mLine.getSize();
+        while (mLevels < MAX_LEVELS && (4 << mLevels) <= size) {
+            addLevel(mLevels++);
+        }
+        mValid = true;
+    }
+
+    /**
+     * Builds a level from the points, or from the level below it.
+     */
+    private void addLevel(int level) {
+        int shift = level + 2;
+        int firstNumber = mRemoved;
+        int lastNumber = mRemoved + mLine.getSize() - 1;
+        mBase[level] = firstNumber >> shift;
+        mStart[level] = 0;
+        mCount[level] = 0;
+        int buckets = (lastNumber >> shift) - mBase[level] + 1;
+        if (mMins[level] == null || mMins[level].length < buckets) {
+            mMins[level] = new int[Math.max(16, 2 * buckets)];
+            mMaxs[level] = new int[Math.max(16, 2 * buckets)];
+        }
+        for (int bucket = mBase[level]; bucket <= lastNumber >> shift; bucket++) {
+            int min;
+            int max;
+            if (level == 0) {
+                int first = Math.max(bucket << shift, firstNumber);
+                int last = Math.min((bucket << shift) + (1 << shift) - 1, lastNumber);
+                min = first;
+                max = first;
+                for (int number = first + 1; number <= last; number++) {
+                    min = lower(min, number);
+                    max = higher(max, number);
+                }
+            } else {
+                // The buckets below are there for every point that is
+                int below = level - 1;
+                int left = mStart[below] + 2 * bucket - mBase[below];
+                int right = left + 1;
+                if (2 * bucket < mBase[below]) {
+                    left = right;
+                }
+                if (2 * bucket + 1 >= mBase[below] + mCount[below]) {
+                    right = left;
+                }
+                min = lower(mMins[below][left], mMins[below][right]);
+                max = higher(mMaxs[below][left], mMaxs[below][right]);
+            }
+            push(level, min, max);
+        }
+    }
+
+    private void push(int level, int min, int max) {
+        int[] mins = mMins[level];
+        int[] maxs = mMaxs[level];
+        int position = mStart[level] + mCount[level];
+        if (mins == null || position == mins.length) {
+            int count = mCount[level];
+            if (mins != null && mStart[level] >= mins.length / 2) {
+                // Most of the array holds buckets that were removed, so reuse it
+                System.arraycopy(mins, mStart[level], mins, 0, count);
+                System.arraycopy(maxs, mStart[level], maxs, 0, count);
+            } else {
+                int[] newMins = new int[Math.max(16, 2 * count)];
+                int[] newMaxs = new int[newMins.length];
+                if (mins != null) {
+                    System.arraycopy(mins, mStart[level], newMins, 0, count);
+                    System.arraycopy(maxs, mStart[level], newMaxs, 0, count);
+                }
+                mins = newMins;
+                maxs = newMaxs;
+                mMins[level] = mins;
+                mMaxs[level] = maxs;
+            }
+            mStart[level] = 0;
+            position = count;
+        }
+        mins[position] = min;
+        maxs[position] = max;
+        mCount[level]++;
+    }
+
+    /**
+     * @return the point with the lower y, of two given by number. Points that were removed
+     * only remain in buckets that are never used whole, so either one will do for them.
+     */
+    private int lower(int a, int b) {
+        if (a < mRemoved) {
+            return b;
+        }
+        if (b < mRemoved) {
+            return a;
+        }
+        return mLine.getY(b - mRemoved) < mLine.getY(a - mRemoved) ? b : a;
+    }
+
+    private int higher(int a, int b) {
+        if (a < mRemoved) {
+            return b;
+        }
+        if (b < mRemoved) {
+            return a;
+        }
+        return mLine.getY(b - mRemoved) > mLine.getY(a - mRemoved) ? b : a;
+    }
+}
@@ -0,0 +1,177 @@
+package com.echo.holographlibrary;
+
+/**
+ * What {@link LineGraph} last drew for a {@link Line}, kept until the line or the viewport
+ * changes.
+ */
+final class LineRenderCache {
+
+    // Indices of the points to draw, or null to draw every visible point
+    int[] mIndices;
+    int mCount;
+
+    // Pixel coordinates of the points to draw, as x/y pairs
+    float[] mPoints = new float[0];
+    // Colors of the points to draw, or null if the line has no point colors
+    int[] mPointColors;
+    // The visible points, read at once when they are not decimated
+    private float[] mXs = new float[0];
+    private float[] mYs = new float[0];
+
+    // Unique across caches, so a frame can tell whether it still shows the same projection
+    private static int sProjections;
+    private int mProjection = -1;
+
+    // Incremented whenever the indices change, so the projection knows to follow
+    private int mVersion;
+    private int mProjectedVersion = -1;
+    private float mProjectedMinX, mProjectedMaxX, mProjectedMinY, mProjectedMaxY;
+    private float mProjectedLeft, mProjectedBottom, mProjectedWidth, mProjectedHeight;
+    private int mModCount = -1;
+    private int mEditCount = -1;
+    private int mSize;
+    // First visible point, where the points to draw start if they are not decimated
+    private int mFrom;
+    private int mDecimation = -1;
+    private int mColumns;
+    private float mMinX, mMaxX;
+
+    /**
+     * Brings the cache up to date with the line and viewport, if it is not already.
+     *
+     * @param columns the number of horizontal pixels the line is drawn across
+     */
+    void update(Line line, int decimation, int columns, float minX, float maxX) {
+        int size = line.getSize();
+        boolean sameLine = mModCount == line.getModCount();
+        boolean appendedOnly = mEditCount == line.getEditCount() && size >= mSize;
+        boolean sameViewport = mDecimation == decimation && mColumns == columns
+                && mMinX == minX && mMaxX == maxX;
+        if (sameLine && sameViewport) {
+            return;
+        }
+
+        // Points are sorted by x, so the visible ones are found by binary search. One more on
+        // either side keeps the segments that cross the edges of the graph.
+        int from = Math.max(0, line.lowerBound(minX) - 1);
+        int to = Math.min(size, line.upperBound(maxX) + 1);
+        if (maxX < minX) {
+            to = from;
+        }
+        int visible = to - from;
+
+        if (decimation == LineGraph.DECIMATION_LTTB && visible > columns) {
+            ensureIndices(columns);
+            mCount = Decimator.lttb(line, from, to, columns, mIndices);
+        } else if (decimation == LineGraph.DECIMATION_M4 && visible > 4 * columns) {
+            boolean resume = appendedOnly && sameViewport && from == mFrom
+                    && mIndices != null && mCount > 0;
+            ensureIndices(4 * columns);
+            LinePyramid pyramid = line.getPyramid();
+            if (pyramid != null) {
+                mCount = pyramid.m4(from, to, minX, maxX, columns, mIndices);
+            } else if (resume) {
+                // Points were only appended, so everything before the last column still holds
+                int kept = Decimator.lastColumnStart(line, mIndices, mCount, minX, maxX, columns);
+                mCount = Decimator.m4(line, mIndices[kept], to, minX, maxX, columns,
+                        mIndices, kept);
+            } else {
+                mCount = Decimator.m4(line, from, to, minX, maxX, columns, mIndices, 0);
+            }
+        } else {
+            mIndices = null;
+            mCount = visible;
+        }
+        mVersion++;
+        mModCount = line.getModCount();
+        mEditCount = line.getEditCount();
+        mSize = size;
+        mFrom = from;
+        mDecimation = decimation;
+        mColumns = columns;
+        mMinX = minX;
+        mMaxX = maxX;
+    }
+
+    /**
+     * Maps the points to draw into pixels, unless they are already mapped for the same
+     * viewport.
+     *
+     * @param left   pixel x of minX
+     * @param bottom pixel y of minY
+     * @param width  pixel distance between minX and maxX
+     * @param height pixel distance between minY and maxY
+     */
+    void project(Line line, float minX, float maxX, float minY, float maxY,
+                 float left, float bottom, float width, float height) {
+        if (mProjectedVersion == mVersion
+                && mProjectedMinX == minX && mProjectedMaxX == maxX
+                && mProjectedMinY == minY && mProjectedMaxY == maxY
+                && mProjectedLeft == left && mProjectedBottom == bottom
+                && mProjectedWidth == width && mProjectedHeight == height) {
+            return;
+        }
+        if (mPoints.length < 2 * mCount) {
+            mPoints = new float[2 * mCount];
+        }
+        float scaleX = width / (maxX - minX);
+        float scaleY = height / (maxY - minY);
+        if (mIndices == null) {
+            if (mXs.length < mCount) {
+                mXs = new float[mCount];
+                mYs = new float[mCount];
+            }
+            line.read(mFrom, mFrom + mCount, mXs, mYs);
+            for (int i = 0; i < mCount; i++) {
+                mPoints[2 * i] = left + (mXs[i] - minX) * scaleX;
+                mPoints[2 * i + 1] = bottom - (mYs[i] - minY) * scaleY;
+            }
+        } else {
+            for (int i = 0; i < mCount; i++) {
+                int index = mIndices[i];
+                mPoints[2 * i] = left + (line.getX(index) - minX) * scaleX;
+                mPoints[2 * i + 1] = bottom - (line.getY(index) - minY) * scaleY;
+            }
+        }
+        if (line.hasPointColors()) {
+            if (mPointColors == null || mPointColors.length < mCount) {
+                mPointColors = new int[mPoints.length / 2];
+            }
+            for (int i = 0; i < mCount; i++) {
+                mPointColors[i] = line.getPointColor(getIndex(i));
+            }
+        } else {
+            mPointColors = null;
+        }
+        mProjection = sProjections++;
+        mProjectedVersion = mVersion;
+        mProjectedMinX = minX;
+        mProjectedMaxX = maxX;
+        mProjectedMinY = minY;
+        mProjectedMaxY = maxY;
+        mProjectedLeft = left;
+        mProjectedBottom = bottom;
+        mProjectedWidth = width;
+        mProjectedHeight = height;
+    }
+
+    /**
+     * @return a number that changes whenever the projected points or their colors do
+     */
+    int getProjection() {
+        return mProjection;
+    }
+
+    /**
+     * @return the index into the line of the i-th point to draw
+     */
+    int getIndex(int i) {
+        return mIndices == null ? mFrom + i : mIndices[i];
+    }
+
+    private void ensureIndices(int capacity) {
+        if (mIndices == null || mIndices.length < capacity) {
+            mIndices = new int[capacity];
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.echo.holographlibrary;
+
+/**
+ * Points added to a {@link Line} that are held back, sorted by x, until they are older than
+ * the reorder window of the line. Points that arrive slightly out of order are sorted here,
+ * so the line itself only ever has points appended.
+ */
+final class LineReorderBuffer {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int mCapacity;
+    private float mTimeWindow;
+
+    // The points are kept in [mStart, mStart + mSize) of the arrays
+    private float[] mXs = new float[MIN_CAPACITY];
+    private float[] mYs = new float[MIN_CAPACITY];
+    private int[] mColors = new int[MIN_CAPACITY];
+    private int[] mSelectedColors = new int[MIN_CAPACITY];
+    private int mStart;
+    private int mSize;
+
+    LineReorderBuffer(int capacity, float timeWindow) {
+        mCapacity = capacity;
+        mTimeWindow = timeWindow;
+    }
+
+    void setCapacity(int capacity) {
+        mCapacity = capacity;
+    }
+
+    void setTimeWindow(float timeWindow) {
+        mTimeWindow = timeWindow;
+    }
+
+    int getSize() {
+        return mSize;
+    }
+
+    float getX(int index) {
+        return mXs[mStart + index];
+    }
+
+    float getY(int index) {
+        return mYs[mStart + index];
+    }
+
+    int getColor(int index) {
+        return mColors[mStart + index];
+    }
+
+    int getSelectedColor(int index) {
+        return mSelectedColors[mStart + index];
+    }
+
+    /**
+     * Adds a point after those with the same x.
+     */
+    void add(float x, float y, int color, int selectedColor) {
+        if (mStart + mSize == mXs.length) {
+            makeRoom();
+        }
+        int low = mStart;
+        int high = mStart + mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mXs[mid] <= x) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int moved = mStart + mSize - low;
+        System.arraycopy(mXs, low, mXs, low + 1, moved);
+        System.arraycopy(mYs, low, mYs, low + 1, moved);
+        System.arraycopy(mColors, low, mColors, low + 1, moved);
+        System.arraycopy(mSelectedColors, low, mSelectedColors, low + 1, moved);
+        mXs[low] = x;
+        mYs[low] = y;
+        mColors[low] = color;
+        mSelectedColors[low] = selectedColor;
+        mSize++;
+    }
+
+    /**
+     * @param lastX the largest x of the line the points are released into
+     * @return how many points from the start have left the window
+     */
+    int getExpiredCount(float lastX) {
+        if (mSize == 0) {
+            return 0;
+        }
+        int count = mCapacity > 0 ? Math.max(0, mSize - mCapacity) : 0;
+        if (mTimeWindow > 0) {
+            float oldest = Math.max(mXs[mStart + mSize - 1], lastX) - mTimeWindow;
+            int expired = 0;
+            while (expired < mSize && mXs[mStart + expired] < oldest) {
+                expired++;
+            }
+            count = Math.max(count, expired);
+        }
+        return count;
+    }
+
+    void removeFirst(int count) {
+        mStart += count;
+        mSize -= count;
+        if (mSize == 0) {
+            mStart = 0;
+        }
+    }
+
+    void clear() {
+        mStart = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Moves the points to the start of the arrays, growing them if that does not free enough.
+     */
+    private void makeRoom() {
+        int length = mXs.length;
+        if (mSize > length / 2) {
+            length += length >> 1;
+        }
+        mXs = copy(mXs, length);
+        mYs = copy(mYs, length);
+        mColors = copy(mColors, length);
+        mSelectedColors = copy(mSelectedColors, length);
+        mStart = 0;
+    }
+
+    private float[] copy(float[] values, int length) {
+        float[] copy = values.length == length ? values : new float[length];
+        System.arraycopy(values, mStart, copy, 0, mSize);
+        return copy;
+    }
+
+    private int[] copy(int[] values, int length) {
+        int[] copy = values.length == length ? values : new int[length];
+        System.arraycopy(values, mStart, copy, 0, mSize);
+        return copy;
+    }
+}
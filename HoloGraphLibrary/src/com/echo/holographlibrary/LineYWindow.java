@@ -0,0 +1,153 @@
+package com.echo.holographlibrary;
+
+/**
+ * Keeps the bounds of y of a {@link Line} whose points are only appended and dropped from the
+ * start, as with a capacity or time window. The candidates for each bound are kept in a deque
+ * of points with monotonic y, so dropping the point that held a bound costs amortized constant
+ * time instead of a scan of every point.
+ * <p/>
+ * Any other change to the points makes the window invalid until it is rebuilt.
+ */
+final class LineYWindow {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * A deque of points, by sequence number and y, that can be popped at both ends.
+     */
+    private static final class Deque {
+        private int[] mSequences = new int[MIN_CAPACITY];
+        private float[] mYs = new float[MIN_CAPACITY];
+        private int mHead;
+        private int mSize;
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        int firstSequence() {
+            return mSequences[mHead];
+        }
+
+        float firstY() {
+            return mYs[mHead];
+        }
+
+        float lastY() {
+            return mYs[(mHead + mSize - 1) & (mYs.length - 1)];
+        }
+
+        void removeFirst() {
+            mHead = (mHead + 1) & (mYs.length - 1);
+            mSize--;
+        }
+
+        void removeLast() {
+            mSize--;
+        }
+
+        void addLast(int sequence, float y) {
+            if (mSize == mYs.length) {
+                grow();
+            }
+            int position = (mHead + mSize) & (mYs.length - 1);
+            mSequences[position] = sequence;
+            mYs[position] = y;
+            mSize++;
+        }
+
+        void clear() {
+            mHead = 0;
+            mSize = 0;
+        }
+
+        private void grow() {
+            // Capacities stay powers of two, so positions wrap with a mask
+            int[] sequences = new int[2 * mYs.length];
+            float[] ys = new float[sequences.length];
+            int first = Math.min(mSize, mYs.length - mHead);
+            System.arraycopy(mSequences, mHead, sequences, 0, first);
+            System.arraycopy(mSequences, 0, sequences, first, mSize - first);
+            System.arraycopy(mYs, mHead, ys, 0, first);
+            System.arraycopy(mYs, 0, ys, first, mSize - first);
+            mSequences = sequences;
+            mYs = ys;
+            mHead = 0;
+        }
+    }
+
+    // Increasing y, the first one is the smallest y of the line
+    private final Deque mMin = new Deque();
+    // Decreasing y, the first one is the largest y of the line
+    private final Deque mMax = new Deque();
+    // Sequence numbers of the first point of the line and of the next point to be added. They
+    // do not change when earlier points are dropped, and may wrap around.
+    private int mFirst;
+    private int mNext;
+    private boolean mValid;
+
+    boolean isValid() {
+        return mValid;
+    }
+
+    /**
+     * Empties the window and makes it valid, to be filled with the points of the line.
+     */
+    void reset() {
+        mMin.clear();
+        mMax.clear();
+        mFirst = 0;
+        mNext = 0;
+        mValid = true;
+    }
+
+    void invalidate() {
+        if (mValid) {
+            mValid = false;
+            mMin.clear();
+            mMax.clear();
+        }
+    }
+
+    void add(float y) {
+        if (!mValid) {
+            return;
+        }
+        int sequence = mNext++;
+        if (y != y) {
+            // NaN is never a bound, like in Line.includeY()
+            return;
+        }
+        while (!mMin.isEmpty() && mMin.lastY() >= y) {
+            mMin.removeLast();
+        }
+        mMin.addLast(sequence, y);
+        while (!mMax.isEmpty() && mMax.lastY() <= y) {
+            mMax.removeLast();
+        }
+        mMax.addLast(sequence, y);
+    }
+
+    void removeFirst(int count) {
+        if (!mValid) {
+            return;
+        }
+        mFirst += count;
+        removeBefore(mMin, mFirst);
+        removeBefore(mMax, mFirst);
+    }
+
+    private static void removeBefore(Deque deque, int first) {
+        while (!deque.isEmpty() && deque.firstSequence() - first < 0) {
+            deque.removeFirst();
+        }
+    }
+
+    float getMin() {
+        return mMin.isEmpty() ? Float.POSITIVE_INFINITY : mMin.firstY();
+    }
+
+    float getMax() {
+        return mMax.isEmpty() ? Float.NEGATIVE_INFINITY : mMax.firstY();
+    }
+}
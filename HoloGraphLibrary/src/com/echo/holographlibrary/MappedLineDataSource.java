@@ -0,0 +1,141 @@
+package com.echo.holographlibrary;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link LineDataSource} that reads the points from a memory-mapped file, so a line can show
+ * far more points than fit on the heap. Only the pages holding the points that are drawn are
+ * read, and the system is free to drop them again.
+ * <p/>
+ * The file holds the x of every point and then the y of every point, as little-endian 32-bit
+ * floats, with the points sorted by x. {@link #write} writes such a file. Finding the visible
+ * points by binary search over x touches a few pages only, but the first time the bounds of y
+ * are needed, for example to fit the graph to its lines, the whole y column is read once.
+ */
+public class MappedLineDataSource implements LineDataSource {
+
+    private static final int BYTES_PER_FLOAT = 4;
+    // A single mapping can be at most 2 GB, so each column is mapped in pieces of 2^28 points
+    private static final int PIECE_SHIFT = 28;
+    private static final int PIECE_POINTS = 1 << PIECE_SHIFT;
+    private static final int PIECE_MASK = PIECE_POINTS - 1;
+
+    private final int mSize;
+    private final FloatBuffer[] mXs;
+    private final FloatBuffer[] mYs;
+
+    public MappedLineDataSource(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            long length = channel.size();
+            if (length % (2 * BYTES_PER_FLOAT) != 0) {
+                throw new IOException(file + " does not hold whole points");
+            }
+            long columnLength = length / 2;
+            if (columnLength / BYTES_PER_FLOAT > Integer.MAX_VALUE) {
+                throw new IOException(file + " holds too many points");
+            }
+            mSize = (int) (columnLength / BYTES_PER_FLOAT);
+            mXs = map(channel, 0, mSize);
+            mYs = map(channel, columnLength, mSize);
+        } finally {
+            // The mappings stay valid once the file is closed
+            stream.close();
+        }
+    }
+
+    /**
+     * Maps a column of count floats starting at the position, a piece at a time.
+     */
+    private static FloatBuffer[] map(FileChannel channel, long position, int count)
+            throws IOException {
+        int pieceCount = (int) (((long) count + PIECE_MASK) >> PIECE_SHIFT);
+        FloatBuffer[] pieces = new FloatBuffer[pieceCount];
+        for (int i = 0; i < pieces.length; i++) {
+            long from = (long) i << PIECE_SHIFT;
+            long length = Math.min(PIECE_POINTS, count - from) * BYTES_PER_FLOAT;
+            pieces[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    position + from * BYTES_PER_FLOAT, length)
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+        return pieces;
+    }
+
+    /**
+     * Writes the first count points of xs and ys to a file in the layout this source reads.
+     * The points must be sorted by x.
+     */
+    public static void write(File file, float[] xs, float[] ys, int count) throws IOException {
+        if (count > xs.length || count > ys.length) {
+            throw new IllegalArgumentException("xs and ys must hold count points");
+        }
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            writeColumn(channel, xs, count);
+            writeColumn(channel, ys, count);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void writeColumn(FileChannel channel, float[] values, int count)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(count, 8192) * BYTES_PER_FLOAT)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        FloatBuffer floats = buffer.asFloatBuffer();
+        for (int from = 0; from < count; from += floats.capacity()) {
+            int chunk = Math.min(floats.capacity(), count - from);
+            floats.clear();
+            floats.put(values, from, chunk);
+            buffer.clear();
+            buffer.limit(chunk * BYTES_PER_FLOAT);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public float getX(int index) {
+        return mXs[index >>> PIECE_SHIFT].get(index & PIECE_MASK);
+    }
+
+    @Override
+    public float getY(int index) {
+        return mYs[index >>> PIECE_SHIFT].get(index & PIECE_MASK);
+    }
+
+    @Override
+    public synchronized boolean read(float[] xs, float[] ys, int from, int to) {
+        read(mXs, xs, from, to);
+        read(mYs, ys, from, to);
+        return true;
+    }
+
+    private static void read(FloatBuffer[] column, float[] values, int from, int to) {
+        int offset = 0;
+        while (from < to) {
+            FloatBuffer piece = column[from >>> PIECE_SHIFT];
+            int start = from & PIECE_MASK;
+            int length = Math.min(PIECE_POINTS - start, to - from);
+            piece.position(start);
+            piece.get(values, offset, length);
+            offset += length;
+            from += length;
+        }
+    }
+}
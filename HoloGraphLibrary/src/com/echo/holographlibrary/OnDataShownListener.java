@@ -0,0 +1,9 @@
+package com.echo.holographlibrary;
+
+/**
+ * Told when data handed to a graph asynchronously, for example with
+ * {@link LineGraph#setLinesAsync}, has been drawn.
+ */
+public interface OnDataShownListener {
+    void onDataShown();
+}
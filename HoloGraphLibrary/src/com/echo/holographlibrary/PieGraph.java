@@ -46,6 +46,7 @@ import android.view.animation.Interpolator;
 import android.view.animation.LinearInterpolator;
 
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 public class PieGraph extends View implements  HoloGraphAnimate {
 
@@ -73,6 +74,17 @@ public class PieGraph extends View implements  HoloGraphAnimate {
     private Interpolator mInterpolator;
     private Animator.AnimatorListener mAnimationListener;
     private ValueAnimator mValueAnimator;
+    private final InvalidationBatcher mInvalidator = new InvalidationBatcher(this);
+    private final AsyncDataSwap mDataSwap = new AsyncDataSwap(this);
+    // Worked out by setSlicesAsync() for the first frame of the slices it set, or null
+    private PreparedLayout mPreparedLayout;
+
+    private static final class PreparedLayout {
+        ArrayList<PieSlice> mSlices;
+        float mTotalValue;
+        // The percentage label of each slice, or null if it has none
+        String[] mLabels;
+    }
 
     public PieGraph(Context context) {
         this(context, null);
@@ -118,10 +130,17 @@ public class PieGraph extends View implements  HoloGraphAnimate {
         }
         innerRadius = mRadius * mInnerCircleRatio / 255;
 
-        mTotalValue = 0;
-        for (PieSlice slice : mSlices) {
-            mTotalValue += slice.getValue();
+        mDataSwap.onDraw();
+        PreparedLayout prepared = mPreparedLayout;
+        mPreparedLayout = null;
+        if (prepared != null && (prepared.mSlices != mSlices
+                || prepared.mLabels.length != mSlices.size())) {
+            prepared = null;
+        } else if (isAnimating()) {
+            // The values change every frame, so the total and labels are worked out again
+            prepared = null;
         }
+        mTotalValue = prepared != null ? prepared.mTotalValue : getTotalValue(mSlices);
 
         int count = 0;
         for (PieSlice slice : mSlices) {
@@ -162,7 +181,7 @@ public class PieGraph extends View implements  HoloGraphAnimate {
         }
 
         if (mDrawLabels) {
-            drawLabels(canvas);
+            drawLabels(canvas, prepared != null ? prepared.mLabels : null);
         }
 
         mDrawCompleted = true;
@@ -176,11 +195,33 @@ public class PieGraph extends View implements  HoloGraphAnimate {
         }
     }
 
-    private void drawLabels(Canvas canvas) {
-        for (PieSlice slice : mSlices) {
-            int percentageValue = (int) (slice.getValue() / mTotalValue * 100);
-            if (percentageValue > 0 && percentageValue < 100) {
-                String textToDraw = String.format("%d%%", percentageValue);
+    private static float getTotalValue(ArrayList<PieSlice> slices) {
+        float totalValue = 0;
+        for (PieSlice slice : slices) {
+            totalValue += slice.getValue();
+        }
+        return totalValue;
+    }
+
+    /**
+     * @return the percentage label of a slice, or null if it gets none
+     */
+    private static String getLabel(PieSlice slice, float totalValue) {
+        int percentageValue = (int) (slice.getValue() / totalValue * 100);
+        if (percentageValue > 0 && percentageValue < 100) {
+            return String.format("%d%%", percentageValue);
+        }
+        return null;
+    }
+
+    /**
+     * @param labels the labels worked out ahead of time, or null to work them out here
+     */
+    private void drawLabels(Canvas canvas, String[] labels) {
+        for (int i = 0; i < mSlices.size(); i++) {
+            PieSlice slice = mSlices.get(i);
+            String textToDraw = labels != null ? labels[i] : getLabel(slice, mTotalValue);
+            if (textToDraw != null) {
                 float cos = (float) Math.cos(Math.toRadians((double) slice.getCentralAngle()));
                 float sin = (float) Math.sin(Math.toRadians((double) slice.getCentralAngle()));
                 float centerX = mCentralPoint.x + (mRadius + mLabelOffset + mLabelRadius) * cos;
@@ -220,7 +261,7 @@ public class PieGraph extends View implements  HoloGraphAnimate {
                     case MotionEvent.ACTION_DOWN:
                         if (r.contains(point.x, point.y)) {
                             mSelectedIndex = count;
-                            postInvalidate();
+                            mInvalidator.invalidate();
                         }
                         break;
                     case MotionEvent.ACTION_UP:
@@ -244,7 +285,7 @@ public class PieGraph extends View implements  HoloGraphAnimate {
         if (MotionEvent.ACTION_UP == event.getAction()
                 || MotionEvent.ACTION_CANCEL == event.getAction()) {
             mSelectedIndex = -1;
-            postInvalidate();
+            mInvalidator.invalidate();
         }
         return true;
     }
@@ -256,13 +297,13 @@ public class PieGraph extends View implements  HoloGraphAnimate {
     public void setBackgroundBitmap(Bitmap backgroundBitmap, int pos_x, int pos_y) {
         mBackgroundImage = backgroundBitmap;
         mBackgroundImageAnchor.set(pos_x, pos_y);
-        postInvalidate();
+        mInvalidator.invalidate();
     }
 
     public void setBackgroundBitmap(Bitmap backgroundBitmap) {
         mBackgroundImageCenter = true;
         mBackgroundImage = backgroundBitmap;
-        postInvalidate();
+        mInvalidator.invalidate();
     }
 
     /**
@@ -271,12 +312,12 @@ public class PieGraph extends View implements  HoloGraphAnimate {
      */
     public void setPadding(int padding) {
         mPadding = padding;
-        postInvalidate();
+        mInvalidator.invalidate();
     }
 
     public void setInnerCircleRatio(int innerCircleRatio) {
         mInnerCircleRatio = innerCircleRatio;
-        postInvalidate();
+        mInvalidator.invalidate();
     }
 
     public ArrayList<PieSlice> getSlices() {
@@ -284,8 +325,40 @@ public class PieGraph extends View implements  HoloGraphAnimate {
     }
 
     public void setSlices(ArrayList<PieSlice> slices) {
+        mDataSwap.cancel();
         mSlices = slices;
-        postInvalidate();
+        mPreparedLayout = null;
+        mInvalidator.invalidate();
+    }
+
+    /**
+     * Like {@link #setSlices(ArrayList)}, but works out the total and the percentage labels on
+     * the given executor first, and only then shows the slices. The slices must not be
+     * changed until the listener, which may be null, is told they were drawn. Setting slices
+     * again before then drops these. The worked out values are only used for the first frame,
+     * so slices changed in place later are drawn with their new values.
+     */
+    public void setSlicesAsync(final ArrayList<PieSlice> slices, Executor executor,
+                               OnDataShownListener listener) {
+        final PreparedLayout layout = new PreparedLayout();
+        mDataSwap.start(executor, new AsyncDataSwap.Preparation() {
+            @Override
+            public void prepare() {
+                layout.mSlices = slices;
+                layout.mTotalValue = getTotalValue(slices);
+                layout.mLabels = new String[slices.size()];
+                for (int i = 0; i < slices.size(); i++) {
+                    layout.mLabels[i] = getLabel(slices.get(i), layout.mTotalValue);
+                }
+            }
+
+            @Override
+            public void apply() {
+                mSlices = slices;
+                mPreparedLayout = layout;
+                mInvalidator.invalidate();
+            }
+        }, listener);
     }
 
     public PieSlice getSlice(int index) {
@@ -294,7 +367,8 @@ public class PieGraph extends View implements  HoloGraphAnimate {
 
     public void addSlice(PieSlice slice) {
         mSlices.add(slice);
-        postInvalidate();
+        mPreparedLayout = null;
+        mInvalidator.invalidate();
     }
 
     public void setOnSliceClickedListener(OnSliceClickedListener listener) {
@@ -303,7 +377,20 @@ public class PieGraph extends View implements  HoloGraphAnimate {
 
     public void removeSlices() {
         mSlices.clear();
-        postInvalidate();
+        mPreparedLayout = null;
+        mInvalidator.invalidate();
+    }
+
+    /**
+     * Holds back redraws until the matching {@link #endBatch()}, so many changes to the graph
+     * cost a single redraw. Batches can be nested.
+     */
+    public void beginBatch() {
+        mInvalidator.beginBatch();
+    }
+
+    public void endBatch() {
+        mInvalidator.endBatch();
     }
 
     @Override
@@ -355,6 +442,7 @@ public class PieGraph extends View implements  HoloGraphAnimate {
         if (mValueAnimator != null)
             mValueAnimator.cancel();
 
+        mPreparedLayout = null;
         for (PieSlice s : mSlices)
             s.setOldValue(s.getValue());
         ValueAnimator va = ValueAnimator.ofFloat(0,1);
@@ -372,7 +460,7 @@ public class PieGraph extends View implements  HoloGraphAnimate {
                     float x = s.getGoalValue() - s.getOldValue();
                     s.setValue(s.getOldValue() + (x * f));
                 }
-                postInvalidate();
+                mInvalidator.invalidate();
             }});
             va.start();
 
@@ -391,7 +479,7 @@ public class PieGraph extends View implements  HoloGraphAnimate {
 
     public void setDrawLabels(boolean drawLabels) {
         mDrawLabels = drawLabels;
-        postInvalidate();
+        mInvalidator.invalidate();
     }
 
     public int getLabelRadius() {
@@ -400,7 +488,7 @@ public class PieGraph extends View implements  HoloGraphAnimate {
 
     public void setLabelRadius(int labelRadius) {
         mLabelRadius = labelRadius;
-        postInvalidate();
+        mInvalidator.invalidate();
     }
 
     public int getLabelOffset() {
@@ -409,6 +497,6 @@ public class PieGraph extends View implements  HoloGraphAnimate {
 
     public void setLabelOffset(int labelOffset) {
         mLabelOffset = labelOffset;
-        postInvalidate();
+        mInvalidator.invalidate();
     }
 }
@@ -59,8 +59,8 @@ public class LineFragment extends Fragment {
         p = new LinePoint();
         p.setX(10);
         p.setY(4);
-        l.addPoint(p);
         p.setColor(resources.getColor(R.color.green));
+        l.addPoint(p);
         l.setColor(resources.getColor(R.color.orange));
 
         LineGraph li = (LineGraph) v.findViewById(R.id.linegraph);